@@ -0,0 +1,204 @@
+// File: BinaryCache.java
+// BinaryCache class
+package minet.data;
+
+import minet.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * A compact binary (little-endian) cache of a parsed dataset, so that a text dataset is parsed only once
+ * and later loaded by memory-mapping the cache file. Cache files are written next to their destination
+ * and then renamed, so a cache is never read half-written.
+ * Two column layouts are supported:
+ * 1) sparse samples: [magic, inputDims, n, nnz] [offsets (n+1 ints)] [indices (nnz ints)] [labels (n ints)]
+ * 2) dense samples:  [magic, inputDims, n] [features (n x inputDims doubles, row-major)] [labels (n ints)]
+ */
+public class BinaryCache {
+
+    private static final int SPARSE_MAGIC = 0x4D4E5331;  // "MNS1"
+    private static final int DENSE_MAGIC = 0x4D4E4431;   // "MND1"
+
+    private BinaryCache() { }
+
+    /**
+     * Get the cache file of a text dataset file.
+     * @param path path to the text file
+     * @return the cache file (the same path with a ".bin" suffix)
+     */
+    public static File cacheFileFor(String path) {
+        return new File(path + ".bin");
+    }
+
+    /**
+     * Check whether a cache file exists and is not older than the files it was built from.
+     * @param cache the cache file
+     * @param sources paths to the files the cache was built from
+     * @return true if the cache can be used
+     */
+    public static boolean isFresh(File cache, String... sources) {
+        if (!cache.isFile())
+            return false;
+        for (String source : sources) {
+            if (new File(source).lastModified() > cache.lastModified())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write sparse samples (arrays of feature indices) to a cache file.
+     * @param cache the cache file
+     * @param inputDims the number of input features
+     * @param items the samples
+     */
+    public static void writeSparse(File cache, int inputDims, List<Pair<int[], Integer>> items) throws IOException {
+        long nnz = 0;
+        for (Pair<int[], Integer> item : items) {
+            nnz += item.first.length;
+        }
+        long size = 4L * (4 + (items.size() + 1) + nnz + items.size());
+
+        File tmp = tmpFileFor(cache);
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw"); FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(SPARSE_MAGIC).putInt(inputDims).putInt(items.size()).putInt((int) nnz);
+
+            int offset = 0;
+            buf.putInt(offset);
+            for (Pair<int[], Integer> item : items) {
+                offset += item.first.length;
+                buf.putInt(offset);
+            }
+            for (Pair<int[], Integer> item : items) {
+                for (int index : item.first) {
+                    buf.putInt(index);
+                }
+            }
+            for (Pair<int[], Integer> item : items) {
+                buf.putInt(item.second);
+            }
+            buf.force();
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        replace(tmp, cache);
+    }
+
+    /**
+     * Read sparse samples from a cache file written by {@link #writeSparse(File, int, List)}.
+     * @param cache the cache file
+     * @param items the list the samples are added to
+     * @return the number of input features
+     */
+    public static int readSparse(File cache, List<Pair<int[], Integer>> items) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(cache, "r"); FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            checkMagic(buf.getInt(), SPARSE_MAGIC, cache);
+            int inputDims = buf.getInt();
+            int n = buf.getInt();
+            int nnz = buf.getInt();
+
+            int[] offsets = new int[n + 1];
+            buf.asIntBuffer().get(offsets);
+            buf.position(buf.position() + 4 * (n + 1));
+            int[] indices = new int[nnz];
+            buf.asIntBuffer().get(indices);
+            buf.position(buf.position() + 4 * nnz);
+            int[] labels = new int[n];
+            buf.asIntBuffer().get(labels);
+
+            for (int i = 0; i < n; i++) {
+                int[] sample = new int[offsets[i + 1] - offsets[i]];
+                System.arraycopy(indices, offsets[i], sample, 0, sample.length);
+                items.add(new Pair<int[], Integer>(sample, labels[i]));
+            }
+            return inputDims;
+        }
+    }
+
+    /**
+     * Write dense samples (feature vectors) to a cache file.
+     * @param cache the cache file
+     * @param inputDims the number of input features
+     * @param items the samples
+     */
+    public static void writeDense(File cache, int inputDims, List<Pair<double[], Integer>> items) throws IOException {
+        long size = 4L * 3 + 8L * items.size() * inputDims + 4L * items.size();
+
+        File tmp = tmpFileFor(cache);
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw"); FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(DENSE_MAGIC).putInt(inputDims).putInt(items.size());
+            for (Pair<double[], Integer> item : items) {
+                for (int j = 0; j < inputDims; j++) {
+                    buf.putDouble(item.first[j]);
+                }
+            }
+            for (Pair<double[], Integer> item : items) {
+                buf.putInt(item.second);
+            }
+            buf.force();
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        replace(tmp, cache);
+    }
+
+    /**
+     * Read dense samples from a cache file written by {@link #writeDense(File, int, List)}.
+     * @param cache the cache file
+     * @param items the list the samples are added to
+     * @return the number of input features
+     */
+    public static int readDense(File cache, List<Pair<double[], Integer>> items) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(cache, "r"); FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            checkMagic(buf.getInt(), DENSE_MAGIC, cache);
+            int inputDims = buf.getInt();
+            int n = buf.getInt();
+
+            double[][] xs = new double[n][inputDims];
+            for (int i = 0; i < n; i++) {
+                buf.asDoubleBuffer().get(xs[i]);
+                buf.position(buf.position() + 8 * inputDims);
+            }
+            int[] labels = new int[n];
+            buf.asIntBuffer().get(labels);
+
+            for (int i = 0; i < n; i++) {
+                items.add(new Pair<double[], Integer>(xs[i], labels[i]));
+            }
+            return inputDims;
+        }
+    }
+
+    private static File tmpFileFor(File cache) {
+        return new File(cache.getPath() + ".tmp");
+    }
+
+    private static void replace(File tmp, File cache) throws IOException {
+        Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void checkMagic(int magic, int expected, File cache) throws IOException {
+        if (magic != expected)
+            throw new IOException("not a valid dataset cache: " + cache);
+    }
+}
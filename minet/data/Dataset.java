@@ -4,9 +4,16 @@ package minet.data;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Random;
+import java.util.function.Function;
 
 import minet.util.Pair;
 
@@ -22,6 +29,23 @@ public abstract class Dataset<Tin, Tout> implements java.io.Serializable{
     protected int currIndex;  // index of the starting sample of the current batch.
     protected int batchsize; // batch size
     protected Random rnd; // random generator
+    protected boolean binaryCache; // if true, fromFile loads (or creates) a binary cache of the parsed file (@see BinaryCache)
+    protected long shardBytes; // if > 0, fromFile streams the file from disk in shards of about this many bytes (@see ShardStream)
+    protected int shuffleBuffer; // the number of samples of the shuffle buffer when streaming
+    protected transient ShardStream<Tin, Tout> stream; // the samples when streaming (items is then null)
+    private transient List<Pair<Tin, Tout>> loadOrder; // the items in the order they were loaded, kept before the first shuffle (@see getState)
+
+    /**
+     * The position of an iteration over a dataset: the order of the items, the index of the next
+     * mini-batch and the state of the random generator, so that training can be resumed exactly.
+     */
+    public static class State implements java.io.Serializable {
+        private static final long serialVersionUID = 4046411093402786374L;
+
+        int[] order;    // order[i] = position in the loaded file of the i-th item
+        int currIndex;
+        byte[] rnd;     // the serialized random generator
+    }
 
 
     public ArrayList<Pair<Tin, Tout>> getItems() {
@@ -41,6 +65,46 @@ public abstract class Dataset<Tin, Tout> implements java.io.Serializable{
         this.rnd = rnd;
     }
 
+    /**
+     * Use a binary cache of the parsed file: the first call to {@link #fromFile(String)} writes it next to
+     * the file, and later calls memory-map it instead of parsing the file again.
+     * @param binaryCache true to use the cache
+     */
+    public void setBinaryCache(boolean binaryCache) {
+        this.binaryCache = binaryCache;
+    }
+
+    /**
+     * Stream the samples from disk instead of loading them, so that datasets larger than memory can be used:
+     * {@link #fromFile(String)} then only splits the file into shards, and each epoch reads them again
+     * (@see {@link ShardStream}). Shuffling permutes the shards and draws the samples from a bounded buffer.
+     * The state of a streamed dataset cannot be saved (@see {@link #getState()}).
+     * @param shardBytes the approximate size of a shard in bytes, 0 to load the dataset into memory
+     * @param shuffleBuffer the number of samples of the shuffle buffer
+     */
+    public void setStreaming(long shardBytes, int shuffleBuffer) {
+        this.shardBytes = shardBytes;
+        this.shuffleBuffer = shuffleBuffer;
+    }
+
+    /**
+     * Check whether the samples are streamed from disk (@see {@link #setStreaming(long, int)}).
+     * @return true if streaming
+     */
+    public boolean isStreaming() {
+        return shardBytes > 0;
+    }
+
+    /**
+     * Open the samples of a file (or directory) as a stream, for the fromFile of streamed datasets.
+     * @param path path to the data file or directory
+     * @param parser parses a line of the file into a sample
+     */
+    protected void openStream(String path, Function<String, Pair<Tin, Tout>> parser) throws IOException {
+        items = null;
+        stream = new ShardStream<Tin, Tout>(path, parser, batchsize, shardBytes, shuffleBuffer);
+    }
+
     /**
      * Load items from file
      * @param path Path to file to load      
@@ -52,6 +116,8 @@ public abstract class Dataset<Tin, Tout> implements java.io.Serializable{
      * @return the number of items
      */
     public int getSize() {
+        if (stream != null)
+            return stream.size();
         return items.size();
     }
 
@@ -60,7 +126,12 @@ public abstract class Dataset<Tin, Tout> implements java.io.Serializable{
      */
     public void reset() {
         this.currIndex = 0;
+        if (stream != null) {
+            stream.restart(shuffle ? rnd : null);
+            return;
+        }
         if (this.shuffle){
+            keepLoadOrder();
             Collections.shuffle(items, rnd);
         }
     }
@@ -70,6 +141,13 @@ public abstract class Dataset<Tin, Tout> implements java.io.Serializable{
      * @return a list of pair of X (feature values) and Y (labels)
      */
     public List<Pair<Tin, Tout>> getNextMiniBatch() {
+        if (stream != null) {
+            List<Pair<Tin, Tout>> batch = stream.nextBatch();
+            if (batch == null)
+                this.reset();
+            return batch;
+        }
+
         // stop the epoch
     	if (currIndex >= items.size()) {
             this.reset();
@@ -83,4 +161,116 @@ public abstract class Dataset<Tin, Tout> implements java.io.Serializable{
         return items.subList(start, end);
     }
 
+    /**
+     * Iterate over the mini-batches of a full pass over the dataset without changing its iteration: the
+     * current index, the order of the samples and the random generator are left as they are, so a dataset
+     * can be evaluated between (or during) the epochs of training on it. The samples are visited in their
+     * current order (in file order when streaming), and must not be shuffled during the pass.
+     * @return an iterator over the mini-batches
+     */
+    public Iterator<List<Pair<Tin, Tout>>> batches() {
+        if (stream != null) {
+            ShardStream<Tin, Tout> pass = new ShardStream<Tin, Tout>(stream);
+            return new Iterator<List<Pair<Tin, Tout>>>() {
+                List<Pair<Tin, Tout>> next = pass.nextBatch();
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public List<Pair<Tin, Tout>> next() {
+                    List<Pair<Tin, Tout>> batch = next;
+                    next = pass.nextBatch();
+                    return batch;
+                }
+            };
+        }
+
+        return new Iterator<List<Pair<Tin, Tout>>>() {
+            int start = 0;
+
+            @Override
+            public boolean hasNext() {
+                return start < items.size();
+            }
+
+            @Override
+            public List<Pair<Tin, Tout>> next() {
+                int end = Math.min(start + batchsize, items.size());
+                List<Pair<Tin, Tout>> batch = items.subList(start, end);
+                start = end;
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * Iterate over the mini-batches with a {@link Prefetcher}, which converts them on a producer thread
+     * while the previous ones are being used.
+     * @param converter converts each mini-batch (e.g. to matrices)
+     * @param depth the number of mini-batches converted ahead (0 to convert them on the calling thread)
+     * @return the prefetcher; call {@link Prefetcher#startEpoch()} at the start of each epoch
+     */
+    public <B> Prefetcher<Tin, Tout, B> prefetch(Prefetcher.Converter<Tin, Tout, B> converter, int depth) {
+        return new Prefetcher<Tin, Tout, B>(this, converter, depth);
+    }
+
+    /**
+     * Get the current position of the iteration over the dataset, e.g. to save it with a checkpoint.
+     * @return a copy of the state
+     */
+    public State getState() {
+        if (stream != null)
+            throw new UnsupportedOperationException("the state of a streamed dataset cannot be saved");
+        keepLoadOrder();
+        IdentityHashMap<Pair<Tin, Tout>, Integer> positions = new IdentityHashMap<Pair<Tin, Tout>, Integer>();
+        for (int i = 0; i < loadOrder.size(); i++) {
+            positions.put(loadOrder.get(i), i);
+        }
+
+        State state = new State();
+        state.order = new int[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            state.order[i] = positions.get(items.get(i));
+        }
+        state.currIndex = currIndex;
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+             ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(rnd);
+            out.flush();
+            state.rnd = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot save the random generator", e);
+        }
+        return state;
+    }
+
+    /**
+     * Resume an iteration over the dataset saved by {@link #getState()}. The dataset must have been loaded
+     * from the same file. The random generator is replaced by a copy of the saved one.
+     * @param state the saved state
+     */
+    public void setState(State state) {
+        if (stream != null)
+            throw new UnsupportedOperationException("the state of a streamed dataset cannot be restored");
+        keepLoadOrder();
+        if (state.order.length != loadOrder.size())
+            throw new IllegalArgumentException("the saved state does not match the dataset");
+        for (int i = 0; i < state.order.length; i++) {
+            items.set(i, loadOrder.get(state.order[i]));
+        }
+        currIndex = state.currIndex;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state.rnd))) {
+            rnd = (Random) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalArgumentException("cannot restore the random generator", e);
+        }
+    }
+
+    private void keepLoadOrder() {
+        if (loadOrder == null || loadOrder.size() != items.size())
+            loadOrder = new ArrayList<Pair<Tin, Tout>>(items);
+    }
 }
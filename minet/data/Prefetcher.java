@@ -0,0 +1,152 @@
+// File: Prefetcher.java
+// Prefetcher class
+package minet.data;
+
+import minet.util.Pair;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Iterates over the mini-batches of a {@link Dataset}, converting them (e.g. to matrices or
+ * {@link SparseBatch}es) on a producer thread, up to depth batches ahead of the training loop, so that
+ * batch assembly overlaps with forward/backward. Converted batches are recycled: a batch returned by
+ * {@link #next()} is handed back to the converter for reuse once {@link #next()} is called again.
+ * The dataset must not be used by other threads during an epoch (between {@link #startEpoch()} and the
+ * end of the epoch, when {@link #next()} returns null).
+ *
+ * @param <Tin> the type of the inputs of the dataset
+ * @param <Tout> the type of the outputs of the dataset
+ * @param <B> the type of a converted batch
+ */
+public class Prefetcher<Tin, Tout, B> {
+
+    /**
+     * Converts a mini-batch of a dataset.
+     */
+    public interface Converter<Tin, Tout, B> {
+        /**
+         * @param items a mini-batch returned by {@link Dataset#getNextMiniBatch()}
+         * @param reuse a batch previously returned by this converter and no longer used (its buffers
+         *              may be reused), or null
+         * @return the converted batch
+         */
+        B convert(List<Pair<Tin, Tout>> items, B reuse);
+    }
+
+    private static final Object END = new Object();  // marks the end of an epoch in the ready queue
+
+    /**
+     * Carries the error of the producer in the ready queue; it also ends the epoch.
+     */
+    private static class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private final Dataset<Tin, Tout> data;
+    private final Converter<Tin, Tout, B> converter;
+    private final int depth;
+    private final BlockingQueue<Object> ready;  // converted batches, END, or the Failure of the producer
+    private final BlockingQueue<B> free;        // batches released by the consumer, for reuse
+    private ExecutorService producer;
+    private B current;                          // the batch returned by the last call to next()
+
+    /**
+     * Constructor for Prefetcher (@see {@link Dataset#prefetch(Converter, int)}).
+     * @param data the dataset
+     * @param converter converts each mini-batch
+     * @param depth the number of batches converted ahead; 0 converts each batch in {@link #next()},
+     *              on the calling thread
+     */
+    public Prefetcher(Dataset<Tin, Tout> data, Converter<Tin, Tout, B> converter, int depth) {
+        this.data = data;
+        this.converter = converter;
+        this.depth = Math.max(0, depth);
+        this.ready = new ArrayBlockingQueue<Object>(Math.max(1, this.depth));
+        this.free = new ArrayBlockingQueue<B>(this.depth + 2);
+        if (this.depth > 0) {
+            this.producer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "minet-prefetcher");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Start converting the mini-batches of the next epoch.
+     */
+    public void startEpoch() {
+        if (producer == null)
+            return;
+        producer.submit(() -> {
+            try {
+                while (true) {
+                    List<Pair<Tin, Tout>> items = data.getNextMiniBatch();
+                    if (items == null) {
+                        ready.put(END);
+                        return;
+                    }
+                    ready.put(converter.convert(items, free.poll()));
+                }
+            } catch (InterruptedException e) {
+                // shut down
+            } catch (Throwable e) {
+                // wait for room in the queue, so the consumer always gets the error
+                try {
+                    ready.put(new Failure(e));
+                } catch (InterruptedException ignored) {
+                    // shut down
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the next converted mini-batch of the epoch. The batch stays valid until the next call.
+     * @return the batch, or null at the end of the epoch
+     */
+    @SuppressWarnings("unchecked")
+    public B next() {
+        B previous = current;
+        current = null;
+
+        if (producer == null) {
+            List<Pair<Tin, Tout>> items = data.getNextMiniBatch();
+            if (items != null)
+                current = converter.convert(items, previous);
+            return current;
+        }
+
+        if (previous != null)
+            free.offer(previous);
+        Object batch;
+        try {
+            batch = ready.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for a mini-batch", e);
+        }
+        if (batch == END)
+            return null;
+        if (batch instanceof Failure)
+            throw new IllegalStateException("failed to prepare a mini-batch", ((Failure) batch).cause);
+        current = (B) batch;
+        return current;
+    }
+
+    /**
+     * Stop the producer thread.
+     */
+    public void shutdown() {
+        if (producer != null)
+            producer.shutdownNow();
+    }
+}
@@ -0,0 +1,262 @@
+// File: ShardStream.java
+// ShardStream class
+package minet.data;
+
+import minet.util.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Streams the samples of a data file (one sample per line) from disk instead of keeping them in memory,
+ * so a {@link Dataset} can iterate over corpora larger than the heap (@see {@link Dataset#setStreaming(long, int)}).
+ * The file (or every file of a directory) is split into shards: byte ranges of about shardBytes, each holding
+ * the lines that start inside it. The shards are read sequentially; shuffling permutes the order of the shards
+ * and draws the samples at random from a bounded buffer filled from the stream, so memory stays constant.
+ */
+public class ShardStream<Tin, Tout> {
+
+    /**
+     * A byte range of a file: the lines starting in [start, end).
+     */
+    private static class Shard {
+        File file;
+        long start, end;
+
+        Shard(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private final Function<String, Pair<Tin, Tout>> parser;
+    private final int batchsize;
+    private final int bufferSize;  // the number of samples of the shuffle buffer
+    private int size;              // the number of samples
+
+    // the current pass over the data
+    private int[] shardOrder;
+    private int nextShard;
+    private LineReader reader;
+    private Random rnd;            // null if the samples are not shuffled
+    private final ArrayList<Pair<Tin, Tout>> buffer = new ArrayList<Pair<Tin, Tout>>();
+
+    /**
+     * Constructor for ShardStream. Counts the samples with one pass over the data.
+     * @param path a data file, or a directory whose files (in name order) are the data
+     * @param parser parses a (non-empty) line into a sample
+     * @param batchsize size of each mini-batch
+     * @param shardBytes the approximate size of a shard in bytes
+     * @param bufferSize the number of samples of the shuffle buffer
+     */
+    public ShardStream(String path, Function<String, Pair<Tin, Tout>> parser, int batchsize, long shardBytes, int bufferSize) throws IOException {
+        this.parser = parser;
+        this.batchsize = batchsize;
+        this.bufferSize = Math.max(1, bufferSize);
+
+        File root = new File(path);
+        File[] files = root.isDirectory() ? root.listFiles(File::isFile) : new File[]{root};
+        if (files == null || !root.exists())
+            throw new IOException("cannot read " + path);
+        Arrays.sort(files);
+        for (File file : files) {
+            long length = file.length();
+            for (long start = 0; start < length; start += shardBytes) {
+                shards.add(new Shard(file, start, Math.min(length, start + shardBytes)));
+            }
+        }
+
+        for (Shard shard : shards) {
+            try (LineReader lines = new LineReader(shard)) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (!line.trim().isEmpty())
+                        size++;
+                }
+            }
+        }
+        restart(null);
+    }
+
+    /**
+     * Create an independent pass over the same shards (e.g. to evaluate a dataset while it is being iterated
+     * over), without counting the samples again. The pass reads the samples in order.
+     * @param other a stream
+     */
+    public ShardStream(ShardStream<Tin, Tout> other) {
+        this.parser = other.parser;
+        this.batchsize = other.batchsize;
+        this.bufferSize = other.bufferSize;
+        this.shards.addAll(other.shards);
+        this.size = other.size;
+        restart(null);
+    }
+
+    /**
+     * Get the number of samples.
+     * @return the number of samples
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Start a new pass over the data.
+     * @param rnd the random generator used to shuffle the shards and the samples, or null to read the samples in order
+     */
+    public void restart(Random rnd) {
+        closeReader();
+        this.rnd = rnd;
+        buffer.clear();
+        nextShard = 0;
+        shardOrder = new int[shards.size()];
+        for (int i = 0; i < shardOrder.length; i++) {
+            shardOrder[i] = i;
+        }
+        if (rnd != null) {
+            for (int i = shardOrder.length - 1; i > 0; i--) {
+                int j = rnd.nextInt(i + 1);
+                int tmp = shardOrder[i];
+                shardOrder[i] = shardOrder[j];
+                shardOrder[j] = tmp;
+            }
+        }
+    }
+
+    /**
+     * Get the next mini-batch of the current pass.
+     * @return a list of at most batchsize samples, or null if the pass is finished
+     */
+    public List<Pair<Tin, Tout>> nextBatch() {
+        List<Pair<Tin, Tout>> batch = new ArrayList<Pair<Tin, Tout>>(batchsize);
+        while (batch.size() < batchsize) {
+            Pair<Tin, Tout> sample = rnd == null ? read() : draw();
+            if (sample == null)
+                break;
+            batch.add(sample);
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    /**
+     * Draw a random sample from the shuffle buffer, topping it up from the stream first.
+     */
+    private Pair<Tin, Tout> draw() {
+        while (buffer.size() < bufferSize) {
+            Pair<Tin, Tout> sample = read();
+            if (sample == null)
+                break;
+            buffer.add(sample);
+        }
+        if (buffer.isEmpty())
+            return null;
+        int j = rnd.nextInt(buffer.size());
+        Pair<Tin, Tout> sample = buffer.get(j);
+        buffer.set(j, buffer.get(buffer.size() - 1));
+        buffer.remove(buffer.size() - 1);
+        return sample;
+    }
+
+    /**
+     * Read the next sample from the shards, in shard order.
+     */
+    private Pair<Tin, Tout> read() {
+        try {
+            while (true) {
+                if (reader == null) {
+                    if (nextShard == shardOrder.length)
+                        return null;
+                    reader = new LineReader(shards.get(shardOrder[nextShard++]));
+                }
+                String line = reader.readLine();
+                if (line == null) {
+                    closeReader();
+                } else if (!line.trim().isEmpty()) {
+                    return parser.apply(line);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+            reader = null;
+        }
+    }
+
+    /**
+     * Reads the lines of a shard. A line belongs to the shard in which it starts, so a reader starting
+     * inside a line skips it, and reads on past the end of its shard to finish its last line.
+     */
+    private static class LineReader implements Closeable {
+        InputStream in;
+        long pos;  // the position of the next byte in the file
+        long end;
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineReader(Shard shard) throws IOException {
+            FileInputStream file = new FileInputStream(shard.file);
+            this.end = shard.end;
+            if (shard.start > 0) {
+                // the byte before the shard tells whether its first line starts at shard.start
+                file.getChannel().position(shard.start - 1);
+                this.pos = shard.start - 1;
+            }
+            this.in = new BufferedInputStream(file, 1 << 16);
+            if (shard.start > 0)
+                skipLine();
+        }
+
+        private void skipLine() throws IOException {
+            int b;
+            while ((b = in.read()) != -1) {
+                pos++;
+                if (b == '\n')
+                    return;
+            }
+        }
+
+        String readLine() throws IOException {
+            if (pos >= end)
+                return null;
+            line.reset();
+            int b;
+            while ((b = in.read()) != -1) {
+                pos++;
+                if (b == '\n')
+                    break;
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0)
+                return null;
+            String str = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            return str.endsWith("\r") ? str.substring(0, str.length() - 1) : str;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+// File: SparseBatch.java
+// SparseBatch class
+package minet.data;
+
+import org.jblas.DoubleMatrix;
+
+/**
+ * A mini-batch of sparse (bag-of-word) inputs stored in CSR style.
+ * The active feature indices of sample i are
+ * {@code indices[offsets[i]] ... indices[offsets[i+1]-1]}, so the batch never
+ * materialises a dense [minibatch_size x input_dims] matrix.
+ * Each index may carry a weight (e.g. a word count or a TF-IDF weight) in values;
+ * without values every weight is 1 (a binary bag of words).
+ */
+public class SparseBatch implements java.io.Serializable {
+
+    private static final long serialVersionUID = 4731952617302214418L;
+
+    public final int[] offsets;  // [minibatch_size + 1] start of each sample in indices
+    public final int[] indices;  // active feature indices of all samples, concatenated
+    public final double[] values; // weight of each index, or null if all weights are 1
+
+    public SparseBatch(int[] offsets, int[] indices) {
+        this(offsets, indices, null);
+    }
+
+    public SparseBatch(int[] offsets, int[] indices, double[] values) {
+        this.offsets = offsets;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * Get the weight of an index.
+     * @param k position in indices
+     * @return values[k], or 1 if the batch has no values
+     */
+    public double weight(int k) {
+        return values == null ? 1 : values[k];
+    }
+
+    /**
+     * Build a sparse batch from a dense matrix, keeping the indices of the non-zero entries, with their
+     * values as weights unless they are all 1.
+     * @param X a [minibatch_size x input_dims] matrix
+     * @return a SparseBatch with X.rows rows
+     */
+    public static SparseBatch fromDense(DoubleMatrix X) {
+        int[] offsets = new int[X.rows + 1];
+        int nnz = 0;
+        for (int k = 0; k < X.length; k++) {
+            if (X.data[k] != 0)
+                nnz++;
+        }
+        int[] indices = new int[nnz];
+        double[] values = new double[nnz];
+        boolean binary = true;
+        int pos = 0;
+        for (int i = 0; i < X.rows; i++) {
+            for (int j = 0; j < X.columns; j++) {
+                double x = X.get(i, j);
+                if (x != 0) {
+                    binary &= x == 1;
+                    values[pos] = x;
+                    indices[pos++] = j;
+                }
+            }
+            offsets[i + 1] = pos;
+        }
+        return new SparseBatch(offsets, indices, binary ? null : values);
+    }
+
+    /**
+     * Get the number of samples in this batch.
+     * @return the number of samples
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Convert to a dense (bag-of-word) matrix, e.g. to feed a {@link minet.layer.Linear} layer.
+     * @param dims the number of input features
+     * @return a [minibatch_size x dims] matrix
+     */
+    public DoubleMatrix toDense(int dims) {
+        return toDense(dims, null);
+    }
+
+    /**
+     * Convert to a dense (bag-of-word) matrix, reusing a matrix of the same shape if given.
+     * @param dims the number of input features
+     * @param reuse a matrix that is no longer used, or null
+     * @return a [minibatch_size x dims] matrix (reuse if it has that shape)
+     */
+    public DoubleMatrix toDense(int dims, DoubleMatrix reuse) {
+        DoubleMatrix X;
+        if (reuse != null && reuse.rows == size() && reuse.columns == dims) {
+            X = reuse;
+            X.fill(0);
+        } else {
+            X = DoubleMatrix.zeros(size(), dims);
+        }
+        for (int i = 0; i < size(); i++) {
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                X.data[indices[k] * X.rows + i] += weight(k);
+            }
+        }
+        return X;
+    }
+}
@@ -1,11 +1,15 @@
 package minet.example.mnist;
 
+import minet.data.Prefetcher;
 import minet.layer.*;
-import minet.loss.CrossEntropy;
+import minet.loss.SoftmaxCrossEntropy;
 import minet.loss.Loss;
 import minet.optim.Optimizer;
 import minet.optim.SGD;
+import minet.util.Accuracy;
+import minet.util.ConfusionMatrix;
 import minet.util.Pair;
+import minet.util.ParallelEvaluator;
 
 import org.jblas.DoubleMatrix;
 import org.jblas.util.Logger;
@@ -18,58 +22,64 @@ import minet.layer.init.*;
 
 public class MNISTClassifier {
 
+    // evaluates the datasets on all the cores
+    private static final ParallelEvaluator evaluator = new ParallelEvaluator(Runtime.getRuntime().availableProcessors());
+
     /**
      * Convert a mini-batch of MNIST dataset to data structure that can be used by the network
      * @param batch a list of MNIST items, each of which is a pair of (input image, output label)
      * @return two DoubleMatrix objects: X (input) and Y (labels)
     */
     public static Pair<DoubleMatrix, DoubleMatrix> fromBatch(List<Pair<double[], Integer>> batch) {
+        return fromBatch(batch, null);
+    }
+
+    /**
+     * convert a minibatch like {@link #fromBatch(List)}, filling the matrices of a converted minibatch
+     * that is no longer used when they have the right shape
+     * @param batch a list of MNIST items
+     * @param reuse a previously converted minibatch, or null
+     * @return two DoubleMatrix objects: X (input) and Y (labels)
+     */
+    public static Pair<DoubleMatrix, DoubleMatrix> fromBatch(List<Pair<double[], Integer>> batch,
+                                                             Pair<DoubleMatrix, DoubleMatrix> reuse) {
         if (batch == null)
             return null;
-        
-        double[][] xs = new double[batch.size()][];
-        double[] ys = new double[batch.size()];
-        for (int i = 0; i < batch.size(); i++) {
-            xs[i] = batch.get(i).first; 
-            ys[i] = (double)batch.get(i).second;
+
+        int n = batch.size(), d = batch.get(0).first.length;
+        DoubleMatrix X, Y;
+        if (reuse != null && reuse.first.rows == n && reuse.first.columns == d) {
+            X = reuse.first;
+            Y = reuse.second;
+        } else {
+            X = new DoubleMatrix(n, d);
+            Y = new DoubleMatrix(n, 1);
+        }
+        for (int i = 0; i < n; i++) {
+            // X is column-major: the pixels of image i go to row i
+            double[] x = batch.get(i).first;
+            for (int j = 0; j < d; j++) {
+                X.data[j * n + i] = x[j];
+            }
+            Y.data[i] = (double)batch.get(i).second;
         }
-        DoubleMatrix X = new DoubleMatrix(xs);
-        DoubleMatrix Y = new DoubleMatrix(ys.length, 1, ys);
         return new Pair<DoubleMatrix, DoubleMatrix>(X, Y);
     }
 
 	/** 
-     * calculate classification accuracy of an ANN on a given dataset.
+     * calculate classification accuracy of an ANN on a given dataset. The iteration over the data is not changed.
      * @param net an ANN model
 	 * @param data an MNIST dataset	 
      * @return the classification accuracy value (double, in the range of [0,1])
     */
     public static double eval(Layer net, MNISTDataset data) {
-        // reset index of the data
-        data.reset();
-        
-        // the number of correct predictions so far
-        double correct = 0;
+        // the mini-batches are evaluated on several threads, each with a replica of the network,
+        // in a separate pass which leaves the index and the order of the data unchanged.
+        // the predicted digit for each image is the one with the highest score (logit)
+        ConfusionMatrix confusion = evaluator.evaluate(net, data.batches(), MNISTClassifier::fromBatch);
 
-        while (true) {
-            // we evaluate per mini-batch
-            Pair<DoubleMatrix, DoubleMatrix> batch = fromBatch(data.getNextMiniBatch());
-            if (batch == null)
-                break;
-
-            // perform forward pass to compute Yhat (the predictions)
-            // each row of Yhat is a probabilty distribution over 10 digits
-            DoubleMatrix Yhat = net.forward(batch.first);
-
-            // the predicted digit for each image is the one with the highest probability
-            int[] preds = Yhat.rowArgmaxs();
-
-            // count how many predictions are correct
-            for (int i = 0; i < preds.length; i++) {
-                if (preds[i] == (int) batch.second.data[i])
-                    correct++;
-            }
-        }
+        // the number of correct predictions
+        double correct = confusion.getCorrect();
 
         // compute classification accuracy
         double acc = correct / data.getSize();
@@ -93,13 +103,19 @@ public class MNISTClassifier {
 		double totalLoss = 0;  // the total loss of the current epoch
 
         traindata.reset(); // reset index and shuffle the data before training
-        
+
+        // the mini-batches are converted to matrices ahead on a producer thread
+        Prefetcher<double[], Integer, Pair<DoubleMatrix, DoubleMatrix>> prefetcher =
+                traindata.prefetch(MNISTClassifier::fromBatch, 2);
+
         for (int e = 0; e < nEpochs; e++) {
             totalLoss = 0;
+            int correct = 0;  // the number of correct predictions of the training pass
 
+            prefetcher.startEpoch();
             while (true) {
                 // get the next mini-batch
-                Pair<DoubleMatrix, DoubleMatrix> batch = fromBatch(traindata.getNextMiniBatch());
+                Pair<DoubleMatrix, DoubleMatrix> batch = prefetcher.next();
                 if (batch == null)
                     break;
 
@@ -108,6 +124,7 @@ public class MNISTClassifier {
 
                 // calculate the loss value
                 DoubleMatrix Yhat = net.forward(batch.first);
+                correct += Accuracy.countCorrect(Yhat, batch.second);
                 double lossVal = loss.forward(batch.second, Yhat);
 
                 // calculate gradients of the weights using backprop algorithm
@@ -118,12 +135,18 @@ public class MNISTClassifier {
 
                 totalLoss += lossVal;
             }
+            // apply the deferred updates before evaluating or changing the learning rate
+            optimizer.flush();
 
             // evaluate and print performance
-            double trainAcc = eval(net, traindata);
+            // the training accuracy is that of the training pass, each mini-batch predicted before its update
+            double trainAcc = (double) correct / traindata.getSize();
             double valAcc = eval(net, devdata);
             System.out.printf("epoch: %4d\tloss: %5.4f\ttrain-accuracy: %3.4f\tdev-accuracy: %3.4f\n", e, totalLoss, trainAcc, valAcc);
 
+            // e.g. decay the learning rate
+            optimizer.endEpoch(valAcc);
+
             // check termination condition
             if (valAcc <= peakAcc) {
                 notAtPeak += 1;
@@ -136,6 +159,7 @@ public class MNISTClassifier {
             if (notAtPeak == patience)
                 break;
         }
+        prefetcher.shutdown();
 
         System.out.println("\ntraining is finished");
     }
@@ -143,7 +167,7 @@ public class MNISTClassifier {
     
     public static void main(String[] args) throws IOException {
         if (args.length < 4){
-            System.out.println("Usage: java MNISTClassifier <seed> <traindata> <devdata> <testdata>");
+            System.out.println("Usage: java MNISTClassifier <seed> <traindata> <devdata> <testdata> [cache]");
             return;
         }        
 
@@ -160,13 +184,19 @@ public class MNISTClassifier {
         int patience = 5;
         int hiddims = 500;
         
+        // parse each data file once and memory-map its binary cache on later runs
+        boolean binaryCache = args.length >= 5 && args[4].equalsIgnoreCase("cache");
+
         // load datasets
         System.out.println("\nLoading data...");
         MNISTDataset trainset = new MNISTDataset(batchsize, true, rnd); 
+        trainset.setBinaryCache(binaryCache);
         trainset.fromFile(args[1]);
         MNISTDataset devset = new MNISTDataset(batchsize, false, rnd); 
+        devset.setBinaryCache(binaryCache);
         devset.fromFile(args[2]);
         MNISTDataset testset = new MNISTDataset(batchsize, false, rnd); 
+        testset.setBinaryCache(binaryCache);
         testset.fromFile(args[3]);
 
         System.out.printf("train: %d instances\n", trainset.getSize());
@@ -180,9 +210,8 @@ public class MNISTClassifier {
         Sequential net = new Sequential(new Layer[] {
                 new Linear(indims, hiddims, new WeightInitXavier()),
                 new ReLU(),
-                new Linear(hiddims, outdims, new WeightInitXavier()),
-                new Softmax()});
-        CrossEntropy loss = new CrossEntropy();
+                new Linear(hiddims, outdims, new WeightInitXavier())});
+        SoftmaxCrossEntropy loss = new SoftmaxCrossEntropy();
         Optimizer sgd = new SGD(net, learningRate);
         System.out.println(net);
 
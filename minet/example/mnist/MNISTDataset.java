@@ -1,11 +1,13 @@
 package minet.example.mnist;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Random;
 
+import minet.data.BinaryCache;
 import minet.data.Dataset;
 import minet.util.Pair;
 
@@ -37,6 +39,12 @@ public class MNISTDataset extends Dataset<double[], Integer> {
 
         items = new ArrayList<Pair<double[], Integer>>();
 
+        File cache = BinaryCache.cacheFileFor(path);
+        if (binaryCache && BinaryCache.isFresh(cache, path)) {
+            inputDims = BinaryCache.readDense(cache, items);
+            return;
+        }
+
         BufferedReader br = new BufferedReader(new FileReader(path));
 
         // first line
@@ -55,5 +63,9 @@ public class MNISTDataset extends Dataset<double[], Integer> {
             items.add(new Pair<double[], Integer>(xs, y));
         }
         br.close();
+
+        if (binaryCache) {
+            BinaryCache.writeDense(cache, inputDims, items);
+        }
     }    
 }
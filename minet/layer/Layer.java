@@ -44,4 +44,48 @@ public interface Layer {
      */
     public List<DoubleMatrix> getAllGradients(List<DoubleMatrix> grads);
 
+    /**
+     * Collect the row-sparse gradients of the layer (@see {@link SparseGradient}).
+     * Weight matrices with a sparse gradient are not returned by
+     * {@link #getAllWeights(List)} and {@link #getAllGradients(List)}.
+     * @param grads a list of sparse gradients (updated accordingly)
+     * @return the same list.
+     */
+    public default List<SparseGradient> getAllSparseGradients(List<SparseGradient> grads) {
+        return grads;
+    }
+
+    /**
+     * Set the workspace the layer takes its outputs, cached inputs and gradients from
+     * (@see {@link Workspace}). Layers without a workspace allocate new matrices.
+     * @param workspace a workspace, shared by all the layers of a {@link Sequential}
+     */
+    public default void setWorkspace(Workspace workspace) {
+    }
+
+    /**
+     * Switch the layer between training mode (the default), where forward keeps what backward needs
+     * (e.g. a copy of its input), and inference mode, where forward keeps nothing and backward must not
+     * be called. Used for evaluation and serving.
+     * @param training true for training mode, false for inference mode
+     */
+    public default void setTraining(boolean training) {
+    }
+
+    /**
+     * Set the precision of the parameters and the computation of the layer (@see {@link Precision}).
+     * This must be called before creating an optimizer of the network, since it may replace the
+     * gradients of the layer. Layers without parameters ignore it.
+     * @param precision the precision
+     */
+    public default void setPrecision(Precision precision) {
+    }
+
+    /**
+     * Create a replica of the layer, which shares the weight matrices and bias vectors of this layer
+     * but has its own gradients and values cached for backward (e.g. to run on another thread).
+     * @return the replica
+     */
+    public Layer replicate();
+
 }
@@ -24,6 +24,18 @@ public class Linear implements Layer, java.io.Serializable {
     DoubleMatrix gW;  // gradient of W
     DoubleMatrix gb;  // gradient of b
 
+    // single precision (@see Precision): the products are computed in float BLAS on a float copy of W,
+    // while W, b and their gradients stay double for the optimizer. The copy is refreshed at the first
+    // forward after a backward (which is followed by an update of W) or a call to setTraining, e.g. when
+    // an evaluation starts, so weights changed in place (updated or restored) are seen from then on.
+    Precision precision = Precision.DOUBLE;
+    transient FloatMatrix Wf;  // float copy of W
+    transient boolean WfStale;  // true if W may have changed since Wf was copied
+    FloatMatrix Xf;            // float copy of the input X, for backward (training mode only)
+
+    Workspace workspace = Workspace.NONE;
+    boolean training = true;  // in inference mode, forward keeps nothing for backward
+
     public Linear(int indims, int outdims, WeightInit wInit) {
         this.W = wInit.generate(indims, outdims);
         this.b = DoubleMatrix.zeros(outdims);
@@ -31,30 +43,134 @@ public class Linear implements Layer, java.io.Serializable {
         this.gb = DoubleMatrix.zeros(outdims);
     }
 
+    /**
+     * Create a linear layer with the given (e.g. trained) weights and new gradients.
+     * @param W a [indims x outdims] weight matrix
+     * @param b a [outdims x 1] bias vector
+     */
     public Linear(DoubleMatrix W, DoubleMatrix b) {
         this.W = W;
         this.b = b;
+        this.gW = DoubleMatrix.zeros(W.rows, W.columns);
+        this.gb = DoubleMatrix.zeros(b.rows, b.columns);
+    }
+
+    /**
+     * Get the precision of the products of the layer.
+     * @return the precision
+     */
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    @Override
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+    }
+
+    @Override
+    public void setTraining(boolean training) {
+        this.training = training;
+        this.WfStale = true;
+    }
+
+    @Override
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+        this.Wf = null;
     }
 
     @Override
     public DoubleMatrix forward(Object input) {
         DoubleMatrix X = (DoubleMatrix)input;
+        if (precision == Precision.FLOAT)
+            return forwardFloat(X);
+
         // Y = X * W + b
-        DoubleMatrix Y = X.mmul(W).addiRowVector(b);
-        this.X = X.dup();
+        DoubleMatrix Y = X.mmuli(W, workspace.get(X.rows, W.columns)).addiRowVector(b);
+        if (training)
+            this.X = workspace.copyOf(X);
+        return Y;
+    }
+
+    private DoubleMatrix forwardFloat(DoubleMatrix X) {
+        if (Wf == null || WfStale) {
+            if (Wf == null)
+                Wf = new FloatMatrix(W.rows, W.columns);
+            for (int i = 0; i < W.length; i++) {
+                Wf.data[i] = (float) W.data[i];
+            }
+            WfStale = false;
+        }
+        FloatMatrix Xf = workspace.floatCopyOf(X);
+        this.Xf = training ? Xf : null;
+
+        // Y = X * W + b
+        FloatMatrix Yf = workspace.getFloat(X.rows, W.columns);
+        NativeBlas.sgemm('N', 'N', X.rows, W.columns, W.rows,
+                1.0f, Xf.data, 0, Xf.rows, Wf.data, 0, Wf.rows, 0.0f, Yf.data, 0, Yf.rows);
+        DoubleMatrix Y = workspace.get(X.rows, W.columns);
+        for (int j = 0; j < Y.columns; j++) {
+            for (int i = 0; i < Y.rows; i++) {
+                Y.data[j * Y.rows + i] = Yf.data[j * Y.rows + i] + b.data[j];
+            }
+        }
         return Y;
     }
 
     @Override
     public DoubleMatrix backward(DoubleMatrix gY) {
-        // gW = X^T * gY
-        gW.addi(X.transpose().mmul(gY));
+        if (precision == Precision.FLOAT)
+            return backwardFloat(gY);
+
+        // gW += X^T * gY
+        NativeBlas.dgemm('T', 'N', W.rows, W.columns, X.rows,
+                1.0, X.data, 0, X.rows, gY.data, 0, gY.rows, 1.0, gW.data, 0, gW.rows);
 
-        // gb = sum_row gY
-        gb.addi(gY.columnSums());
+        addBiasGradient(gY);
 
         // gX = gY * W^T
-        return gY.mmul(W.transpose());
+        DoubleMatrix gX = workspace.get(gY.rows, W.rows);
+        NativeBlas.dgemm('N', 'T', gY.rows, W.rows, W.columns,
+                1.0, gY.data, 0, gY.rows, W.data, 0, W.rows, 0.0, gX.data, 0, gX.rows);
+        return gX;
+    }
+
+    private DoubleMatrix backwardFloat(DoubleMatrix gY) {
+        FloatMatrix gYf = workspace.floatCopyOf(gY);
+
+        // gW += X^T * gY
+        FloatMatrix gWf = workspace.getFloat(W.rows, W.columns);
+        NativeBlas.sgemm('T', 'N', W.rows, W.columns, Xf.rows,
+                1.0f, Xf.data, 0, Xf.rows, gYf.data, 0, gYf.rows, 0.0f, gWf.data, 0, gWf.rows);
+        for (int i = 0; i < gW.length; i++) {
+            gW.data[i] += gWf.data[i];
+        }
+
+        addBiasGradient(gY);
+
+        // gX = gY * W^T
+        FloatMatrix gXf = workspace.getFloat(gY.rows, W.rows);
+        NativeBlas.sgemm('N', 'T', gY.rows, W.rows, W.columns,
+                1.0f, gYf.data, 0, gYf.rows, Wf.data, 0, Wf.rows, 0.0f, gXf.data, 0, gXf.rows);
+        DoubleMatrix gX = workspace.get(gY.rows, W.rows);
+        for (int i = 0; i < gX.length; i++) {
+            gX.data[i] = gXf.data[i];
+        }
+        // the optimizer updates W next
+        WfStale = true;
+        return gX;
+    }
+
+    private void addBiasGradient(DoubleMatrix gY) {
+        // gb += sum_row gY
+        for (int j = 0; j < gY.columns; j++) {
+            double sum = 0;
+            for (int i = 0; i < gY.rows; i++) {
+                sum += gY.data[j * gY.rows + i];
+            }
+            gb.data[j] += sum;
+        }
     }
 
     @Override
@@ -71,6 +187,13 @@ public class Linear implements Layer, java.io.Serializable {
         return grads;
     }
 
+    @Override
+    public Layer replicate() {
+        Linear replica = new Linear(W, b);
+        replica.precision = precision;
+        return replica;
+    }
+
     @Override
     public String toString() {
         return String.format("Linear: %d in, %d out", W.rows, W.columns);
@@ -0,0 +1,186 @@
+// File: Parameters.java
+// Parameters class
+package minet.layer;
+
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The dense parameters of a network and their gradients (@see {@link Layer#getAllWeights(List)} and
+ * {@link Layer#getAllGradients(List)}), kept as arrays of their data so that optimizers and gradient
+ * reductions run one tight loop per parameter instead of a jblas operation (and a temporary) per matrix.
+ * Together the parameters form one flat vector, in the order of getAllWeights, which can be copied
+ * in and out in bulk (e.g. to reduce or save all the gradients at once).
+ * The arrays are those of the matrices of the layers, so the layers see every update.
+ */
+public class Parameters {
+
+    final double[][] weights;  // the data of the weight matrices
+    final double[][] grads;    // the data of their gradients
+    final int[] offsets;       // offsets[i] = position of parameter i in the flat vector, offsets[n] = its size
+
+    /**
+     * Collect the dense parameters of a network.
+     * @param net the network
+     */
+    public Parameters(Layer net) {
+        List<DoubleMatrix> W = net.getAllWeights(new ArrayList<DoubleMatrix>());
+        List<DoubleMatrix> G = net.getAllGradients(new ArrayList<DoubleMatrix>());
+        if (W.size() != G.size())
+            throw new IllegalArgumentException("the network has " + W.size() + " weights but " + G.size() + " gradients");
+        this.weights = new double[W.size()][];
+        this.grads = new double[W.size()][];
+        this.offsets = new int[W.size() + 1];
+        for (int i = 0; i < W.size(); i++) {
+            weights[i] = W.get(i).data;
+            grads[i] = G.get(i).data;
+            offsets[i + 1] = offsets[i] + weights[i].length;
+        }
+    }
+
+    /**
+     * Get the number of parameter matrices.
+     * @return the number of matrices
+     */
+    public int count() {
+        return weights.length;
+    }
+
+    /**
+     * Get the total number of parameters, i.e. the length of the flat vector.
+     * @return the number of values
+     */
+    public int size() {
+        return offsets[weights.length];
+    }
+
+    /**
+     * Get the data of a weight matrix.
+     * @param i the index of the matrix
+     * @return its data (not a copy)
+     */
+    public double[] getWeights(int i) {
+        return weights[i];
+    }
+
+    /**
+     * Get the data of the gradient of a weight matrix.
+     * @param i the index of the matrix
+     * @return its data (not a copy)
+     */
+    public double[] getGradients(int i) {
+        return grads[i];
+    }
+
+    /**
+     * Set all the gradients to 0.
+     */
+    public void zeroGradients() {
+        for (double[] g : grads) {
+            Arrays.fill(g, 0);
+        }
+    }
+
+    /**
+     * Update the weights in place: w += alpha * g.
+     * @param alpha a scaling factor (e.g. minus the learning rate)
+     */
+    public void addGradientsToWeights(double alpha) {
+        for (int i = 0; i < weights.length; i++) {
+            double[] w = weights[i], g = grads[i];
+            for (int k = 0; k < g.length; k++) {
+                w[k] += alpha * g[k];
+            }
+        }
+    }
+
+    /**
+     * Accumulate the gradients of another set of the same parameters (e.g. of a replica): g += alpha * other.g.
+     * @param other the parameters of a replica of the network
+     * @param alpha a scaling factor
+     */
+    public void addGradients(Parameters other, double alpha) {
+        for (int i = 0; i < grads.length; i++) {
+            double[] g = grads[i], o = other.grads[i];
+            for (int k = 0; k < g.length; k++) {
+                g[k] += alpha * o[k];
+            }
+        }
+    }
+
+    /**
+     * Scale all the gradients in place.
+     * @param alpha a scaling factor
+     */
+    public void scaleGradients(double alpha) {
+        for (double[] g : grads) {
+            for (int k = 0; k < g.length; k++) {
+                g[k] *= alpha;
+            }
+        }
+    }
+
+    /**
+     * Get the squared L2 norm of all the gradients.
+     * @return the sum of the squared gradients
+     */
+    public double gradientNormSquared() {
+        double sum = 0;
+        for (double[] g : grads) {
+            for (double x : g) {
+                sum += x * x;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Copy all the weights to a flat vector.
+     * @param flat an array of at least {@link #size()} values, or null
+     * @return flat, or a new array
+     */
+    public double[] copyWeightsTo(double[] flat) {
+        return copy(weights, flat);
+    }
+
+    /**
+     * Copy all the weights from a flat vector (@see {@link #copyWeightsTo(double[])}).
+     * @param flat the flat vector
+     */
+    public void copyWeightsFrom(double[] flat) {
+        for (int i = 0; i < weights.length; i++) {
+            System.arraycopy(flat, offsets[i], weights[i], 0, weights[i].length);
+        }
+    }
+
+    /**
+     * Copy all the gradients to a flat vector.
+     * @param flat an array of at least {@link #size()} values, or null
+     * @return flat, or a new array
+     */
+    public double[] copyGradientsTo(double[] flat) {
+        return copy(grads, flat);
+    }
+
+    /**
+     * Copy all the gradients from a flat vector (@see {@link #copyGradientsTo(double[])}).
+     * @param flat the flat vector
+     */
+    public void copyGradientsFrom(double[] flat) {
+        for (int i = 0; i < grads.length; i++) {
+            System.arraycopy(flat, offsets[i], grads[i], 0, grads[i].length);
+        }
+    }
+
+    private double[] copy(double[][] arrays, double[] flat) {
+        if (flat == null)
+            flat = new double[size()];
+        for (int i = 0; i < arrays.length; i++) {
+            System.arraycopy(arrays[i], 0, flat, offsets[i], arrays[i].length);
+        }
+        return flat;
+    }
+}
@@ -0,0 +1,15 @@
+// File: Precision.java
+// Precision enum
+package minet.layer;
+
+/**
+ * The floating-point precision a layer stores its parameters and runs its matrix products in
+ * (@see {@link Layer#setPrecision(Precision)}).
+ * The matrices passed between layers, and thus to the loss and the optimizer, are always DoubleMatrix.
+ */
+public enum Precision {
+    /** 64-bit parameters and double BLAS (the default). */
+    DOUBLE,
+    /** 32-bit embedding tables, and matrix products of Linear layers in float BLAS. */
+    FLOAT
+}
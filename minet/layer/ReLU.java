@@ -15,22 +15,61 @@ public class ReLU implements Layer, java.io.Serializable {
 
 	private static final long serialVersionUID = 6243622144246414861L;
 	// for backward
-    DoubleMatrix X; 
-    
-    public ReLU() {}
+    boolean[] mask;   // mask[k] = X.data[k] > 0, reused across mini-batches (sized to the largest batch seen)
+    boolean inPlace;  // if true, forward overwrites its input and backward overwrites gY
+
+    Workspace workspace = Workspace.NONE;
+    boolean training = true;  // in inference mode, forward keeps nothing for backward
+
+    public ReLU() {
+        this(false);
+    }
+
+    /**
+     * @param inPlace if true, forward and backward reuse their argument as the output.
+     *                Only use it when the caller does not reuse the input (e.g. the output of a Linear layer).
+     */
+    public ReLU(boolean inPlace) {
+        this.inPlace = inPlace;
+    }
+
+    /**
+     * @return true if forward and backward reuse their argument as the output
+     */
+    public boolean isInPlace() {
+        return inPlace;
+    }
+
+    @Override
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+    }
+
+    @Override
+    public void setTraining(boolean training) {
+        this.training = training;
+    }
 
     @Override
     public DoubleMatrix forward(Object input) {
         DoubleMatrix X = (DoubleMatrix)input;
-        this.X = X.dup();
 
         // Y[i,j] = max(0, X[i,j])
-        DoubleMatrix Y = X.dup();
-        for (int i = 0; i < Y.rows; i++) {
-            for (int j = 0; j < Y.columns; j++) {
-                if (X.get(i, j) <= 0)
-                    Y.put(i, j, 0);
+        DoubleMatrix Y = inPlace ? X : workspace.get(X.rows, X.columns);
+        double[] x = X.data, y = Y.data;
+        if (!training) {
+            for (int k = 0; k < X.length; k++) {
+                y[k] = x[k] > 0 ? x[k] : 0;
             }
+            return Y;
+        }
+
+        if (mask == null || mask.length < X.length)
+            mask = new boolean[X.length];
+        for (int k = 0; k < X.length; k++) {
+            boolean positive = x[k] > 0;
+            mask[k] = positive;
+            y[k] = positive ? x[k] : 0;
         }
         return Y;
     }
@@ -38,12 +77,10 @@ public class ReLU implements Layer, java.io.Serializable {
     @Override
     public DoubleMatrix backward(DoubleMatrix gY) {
         // gX[i,j] = 0 if X[i,j] <= 0 0 else gY[i,j]
-        DoubleMatrix gX = gY.dup();
-        for (int i = 0; i < gX.rows; i++) {
-            for (int j = 0; j < gX.columns; j++) {
-                if (X.get(i, j) <= 0)
-                    gX.put(i, j, 0);
-            }
+        DoubleMatrix gX = inPlace ? gY : workspace.get(gY.rows, gY.columns);
+        double[] g = gY.data, gx = gX.data;
+        for (int k = 0; k < gY.length; k++) {
+            gx[k] = mask[k] ? g[k] : 0;
         }
 
         return gX;
@@ -59,6 +96,11 @@ public class ReLU implements Layer, java.io.Serializable {
         return grads;
     }
 
+    @Override
+    public Layer replicate() {
+        return new ReLU(inPlace);
+    }
+
     @Override
     public String toString() {
         return "ReLU";
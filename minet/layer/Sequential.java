@@ -15,6 +15,8 @@ import java.util.List;
  * For example: a sequential object with the list of layers
  * [Linear, ReLU, Linear, Softmax] is equivalent to
  * {@literal X=X1 -> Linear -> X2 -> ReLU -> X3 -> Linear -> X4 -> Softmax -> Y=X5}
+ * The layers share a {@link Workspace} owned by this container, which is reset at the start of
+ * each forward: the matrices returned by forward and backward are only valid until the next forward.
  * @author Phong Le
  */
 public class Sequential implements Layer, java.io.Serializable {
@@ -22,6 +24,8 @@ public class Sequential implements Layer, java.io.Serializable {
 	private static final long serialVersionUID = 2172439814486831959L;
 	
 	Layer[] layers;
+    Workspace workspace;    // buffers shared by all the layers
+    boolean ownsWorkspace;  // false if the workspace is set by an enclosing Sequential
 
 
     /**
@@ -30,14 +34,62 @@ public class Sequential implements Layer, java.io.Serializable {
      */
     public Sequential(Sequential net) {
       this.layers = net.layers;
+      this.workspace = net.workspace;
+      this.ownsWorkspace = net.ownsWorkspace;
     }
 
     public Sequential(Layer[] layers) {
         this.layers = layers;
+        setWorkspace(new Workspace());
+        this.ownsWorkspace = true;
+    }
+
+    /**
+     * Get the layers of the container.
+     * @return the layers, in order
+     */
+    public Layer[] getLayers() {
+        return layers;
+    }
+
+    /**
+     * Get the dense parameters of all the layers and their gradients as one flat vector,
+     * e.g. to reset, update, reduce or copy them in bulk.
+     * @return the parameters (views of the data of the layers)
+     */
+    public Parameters getParameters() {
+        return new Parameters(this);
+    }
+
+    @Override
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+        this.ownsWorkspace = false;
+        for (int i = 0; i < layers.length; i++) {
+            layers[i].setWorkspace(workspace);
+        }
+    }
+
+    @Override
+    public void setTraining(boolean training) {
+        for (int i = 0; i < layers.length; i++) {
+            layers[i].setTraining(training);
+        }
+    }
+
+    @Override
+    public void setPrecision(Precision precision) {
+        for (int i = 0; i < layers.length; i++) {
+            layers[i].setPrecision(precision);
+        }
     }
 
     @Override
     public DoubleMatrix forward(Object input) {
+        // the matrices of the previous mini-batch are no longer needed
+        if (ownsWorkspace)
+            workspace.reset();
+
         Object X = input;
         for (int i = 0; i < layers.length; i++) {
             X = layers[i].forward(X);
@@ -69,6 +121,23 @@ public class Sequential implements Layer, java.io.Serializable {
         return grads;
     }
 
+    @Override
+    public List<SparseGradient> getAllSparseGradients(List<SparseGradient> grads) {
+        for (int i = 0; i < layers.length; i++) {
+            layers[i].getAllSparseGradients(grads);
+        }
+        return grads;
+    }
+
+    @Override
+    public Layer replicate() {
+        Layer[] replicas = new Layer[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            replicas[i] = layers[i].replicate();
+        }
+        return new Sequential(replicas);
+    }
+
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder();
@@ -18,22 +18,43 @@ public class Sigmoid implements Layer, java.io.Serializable {
 	
 	// for backward
     DoubleMatrix Y;
+
+    Workspace workspace = Workspace.NONE;
+    boolean training = true;  // in inference mode, forward keeps nothing for backward
     
     public Sigmoid() {}
 
+    @Override
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+    }
+
+    @Override
+    public void setTraining(boolean training) {
+        this.training = training;
+    }
+
     @Override
     public DoubleMatrix forward(Object input) {
         DoubleMatrix X = (DoubleMatrix)input;
         // Y[i] = 1 / (1 + exp(-X[i]))
-        DoubleMatrix Y = MatrixFunctions.expi(X.mul(-1)).addi(1).rdivi(1);
-        this.Y = Y.dup();
+        DoubleMatrix Y = workspace.get(X.rows, X.columns);
+        for (int k = 0; k < X.length; k++) {
+            Y.data[k] = 1 / (1 + Math.exp(-X.data[k]));
+        }
+        if (training)
+            this.Y = workspace.copyOf(Y);
         return Y;
     }
 
     @Override
     public DoubleMatrix backward(DoubleMatrix gY) {
         // gX = gY . (Y . (1 - Y))
-        return gY.mul(Y.mul(Y.rsub(1)));
+        DoubleMatrix gX = workspace.get(gY.rows, gY.columns);
+        for (int k = 0; k < gY.length; k++) {
+            gX.data[k] = gY.data[k] * Y.data[k] * (1 - Y.data[k]);
+        }
+        return gX;
     }
 
     @Override
@@ -46,6 +67,11 @@ public class Sigmoid implements Layer, java.io.Serializable {
         return grads;
     }
 
+    @Override
+    public Layer replicate() {
+        return new Sigmoid();
+    }
+
     @Override
     public String toString() {
         return "Sigmoid";
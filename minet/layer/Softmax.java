@@ -19,25 +19,63 @@ public class Softmax implements Layer, java.io.Serializable {
 	
 	// for backward
     DoubleMatrix Y;
+
+    Workspace workspace = Workspace.NONE;
+    boolean training = true;  // in inference mode, forward keeps nothing for backward
     
     public Softmax() {}
 
+    @Override
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+    }
+
+    @Override
+    public void setTraining(boolean training) {
+        this.training = training;
+    }
+
     @Override
     public DoubleMatrix forward(Object input) {
         DoubleMatrix X = (DoubleMatrix)input;
         // Y[:,j] = exp(Y[:,j]) / sum_k exp(Y[:,k])
-        DoubleMatrix maxVal = X.rowMaxs();
-        DoubleMatrix Y = MatrixFunctions.expi(X.subColumnVector(maxVal));
-        DoubleMatrix norm = Y.rowSums();
-        Y = Y.diviColumnVector(norm);
-        this.Y = Y.dup();
+        DoubleMatrix Y = workspace.get(X.rows, X.columns);
+        int n = X.rows;
+        for (int i = 0; i < n; i++) {
+            double maxVal = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < X.columns; j++) {
+                maxVal = Math.max(maxVal, X.data[j * n + i]);
+            }
+            double norm = 0;
+            for (int j = 0; j < X.columns; j++) {
+                double e = Math.exp(X.data[j * n + i] - maxVal);
+                Y.data[j * n + i] = e;
+                norm += e;
+            }
+            for (int j = 0; j < X.columns; j++) {
+                Y.data[j * n + i] /= norm;
+            }
+        }
+        if (training)
+            this.Y = workspace.copyOf(Y);
         return Y;
     }
 
     @Override
     public DoubleMatrix backward(DoubleMatrix gY) {
         // gX[:,j] = Y[:,j] * (gY[:,j] - sum_i gY[:,i] Y[:,i])
-        return gY.subColumnVector(Y.mul(gY).rowSums()).muli(Y);
+        DoubleMatrix gX = workspace.get(gY.rows, gY.columns);
+        int n = gY.rows;
+        for (int i = 0; i < n; i++) {
+            double dot = 0;
+            for (int j = 0; j < gY.columns; j++) {
+                dot += gY.data[j * n + i] * Y.data[j * n + i];
+            }
+            for (int j = 0; j < gY.columns; j++) {
+                gX.data[j * n + i] = Y.data[j * n + i] * (gY.data[j * n + i] - dot);
+            }
+        }
+        return gX;
     }
 
     @Override
@@ -50,6 +88,11 @@ public class Softmax implements Layer, java.io.Serializable {
         return grads;
     }
 
+    @Override
+    public Layer replicate() {
+        return new Softmax();
+    }
+
     @Override
     public String toString() {
         return "Softmax";
@@ -0,0 +1,246 @@
+// File: SparseGradient.java
+// Row-sparse gradient of a weight matrix
+package minet.layer;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+import java.util.Arrays;
+
+/**
+ * A row-sparse gradient of a weight matrix W, e.g. the embedding table of an embedding layer,
+ * where a mini-batch only touches a few rows.
+ * Only the touched rows are stored, in a compact row-major buffer, so resetting the gradient and
+ * updating W cost O(#touched rows x #columns) instead of O(#rows x #columns).
+ * W is either a DoubleMatrix or, for single-precision tables (@see {@link Precision}), a FloatMatrix;
+ * the gradient itself is always stored in double.
+ * A table whose rows are read as contiguous vectors can be stored transposed ([cols x rows], one column
+ * per row of the table), so that updating a row is a contiguous loop too (@see {@link #getWeightOffset(int)}).
+ */
+public class SparseGradient implements java.io.Serializable {
+
+    private static final long serialVersionUID = -3390461827730455184L;
+
+    DoubleMatrix W;     // the weight matrix this gradient belongs to (null if Wf is used)
+    FloatMatrix Wf;     // the single-precision weight matrix this gradient belongs to (null if W is used)
+    int rows, cols;     // the shape of the weight matrix (of the table it stores if transposed)
+    boolean transposed; // if true, W stores the table transposed: element (r, d) is at W.data[r * cols + d]
+    int[] rowSlot;      // rowSlot[r] = position of row r in the buffer, -1 if row r is not touched
+    int[] touched;      // indices of the touched rows, the first nTouched are valid
+    int nTouched;       // number of touched rows
+    double[] buffer;    // [nTouched x cols] row-major gradient values of the touched rows
+
+    public SparseGradient(DoubleMatrix W) {
+        this(W, false);
+    }
+
+    public SparseGradient(FloatMatrix W) {
+        this(W, false);
+    }
+
+    /**
+     * @param W the weight matrix
+     * @param transposed if true, W is the [cols x rows] transpose of the table, whose rows have the sparse gradient
+     */
+    public SparseGradient(DoubleMatrix W, boolean transposed) {
+        this(transposed ? W.columns : W.rows, transposed ? W.rows : W.columns);
+        this.W = W;
+        this.transposed = transposed;
+    }
+
+    /**
+     * @param W the single-precision weight matrix
+     * @param transposed if true, W is the [cols x rows] transpose of the table, whose rows have the sparse gradient
+     */
+    public SparseGradient(FloatMatrix W, boolean transposed) {
+        this(transposed ? W.columns : W.rows, transposed ? W.rows : W.columns);
+        this.Wf = W;
+        this.transposed = transposed;
+    }
+
+    private SparseGradient(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowSlot = new int[rows];
+        Arrays.fill(this.rowSlot, -1);
+        this.touched = new int[16];
+        this.buffer = new double[16 * cols];
+    }
+
+    /**
+     * Get the weight matrix this gradient belongs to.
+     * @return the weight matrix, or null if it is a single-precision matrix (@see {@link #getFloatWeights()})
+     */
+    public DoubleMatrix getWeights() {
+        return W;
+    }
+
+    /**
+     * Get the single-precision weight matrix this gradient belongs to.
+     * @return the weight matrix, or null if it is a double-precision matrix (@see {@link #getWeights()})
+     */
+    public FloatMatrix getFloatWeights() {
+        return Wf;
+    }
+
+    /**
+     * Get the number of rows of the table.
+     * @return the number of rows (e.g. the vocabulary size of an embedding table)
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the number of columns of the table, i.e. the length of a row of the buffer.
+     * @return the number of columns
+     */
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * Get the position in the data of W of the first value of a row of the table.
+     * @param row the row index
+     * @return the offset; value d of the row is at offset + d * {@link #getWeightStride()}
+     */
+    public int getWeightOffset(int row) {
+        return transposed ? row * cols : row;
+    }
+
+    /**
+     * Get the distance in the data of W between two consecutive values of a row of the table.
+     * @return 1 if W is transposed (rows are contiguous), otherwise the number of rows
+     */
+    public int getWeightStride() {
+        return transposed ? 1 : rows;
+    }
+
+    /**
+     * Get the number of touched rows.
+     * @return the number of rows with a (possibly) non-zero gradient
+     */
+    public int getNumTouchedRows() {
+        return nTouched;
+    }
+
+    /**
+     * Get the index (in W) of the k-th touched row.
+     * @param k position in [0, getNumTouchedRows())
+     * @return the row index in W
+     */
+    public int getTouchedRow(int k) {
+        return touched[k];
+    }
+
+    /**
+     * Get the compact gradient buffer. The gradient of the k-th touched row is stored
+     * at {@code buffer[k * cols] ... buffer[(k+1) * cols - 1]}, where cols is the number of columns of W.
+     * @return the buffer
+     */
+    public double[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the offset in the buffer of the gradient of a row, marking the row as touched if necessary.
+     * @param row the row index in W
+     * @return the offset of the row in the buffer
+     */
+    public int rowOffset(int row) {
+        int slot = rowSlot[row];
+        if (slot < 0) {
+            if (nTouched == touched.length) {
+                touched = Arrays.copyOf(touched, 2 * touched.length);
+                buffer = Arrays.copyOf(buffer, touched.length * cols);
+            }
+            slot = nTouched++;
+            touched[slot] = row;
+            rowSlot[row] = slot;
+        }
+        return slot * cols;
+    }
+
+    /**
+     * Set the gradient to 0 by clearing the touched rows.
+     */
+    public void reset() {
+        for (int k = 0; k < nTouched; k++) {
+            rowSlot[touched[k]] = -1;
+        }
+        Arrays.fill(buffer, 0, nTouched * cols, 0);
+        nTouched = 0;
+    }
+
+    /**
+     * Accumulate another sparse gradient of the same weight matrix: this += alpha * other.
+     * @param other a sparse gradient (e.g. computed by a replica of the layer)
+     * @param alpha a scaling factor
+     */
+    public void addi(SparseGradient other, double alpha) {
+        for (int k = 0; k < other.nTouched; k++) {
+            int offset = rowOffset(other.touched[k]);
+            for (int d = 0; d < cols; d++) {
+                buffer[offset + d] += alpha * other.buffer[k * cols + d];
+            }
+        }
+    }
+
+    /**
+     * Get the squared L2 norm of the gradient.
+     * @return the sum of the squared values of the touched rows
+     */
+    public double normSquared() {
+        double sum = 0;
+        for (int i = 0; i < nTouched * cols; i++) {
+            sum += buffer[i] * buffer[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Scale the gradient in place.
+     * @param alpha a scaling factor
+     */
+    public void muli(double alpha) {
+        for (int i = 0; i < nTouched * cols; i++) {
+            buffer[i] *= alpha;
+        }
+    }
+
+    /**
+     * Update the touched rows of the weight matrix: W[r,:] += alpha * gradient[r,:].
+     * @param alpha a scaling factor (e.g. minus the learning rate)
+     */
+    public void addiToWeights(double alpha) {
+        int stride = getWeightStride();
+        for (int k = 0; k < nTouched; k++) {
+            int offset = getWeightOffset(touched[k]);
+            if (Wf != null) {
+                for (int d = 0; d < cols; d++) {
+                    Wf.data[offset + d * stride] += alpha * buffer[k * cols + d];
+                }
+            } else {
+                for (int d = 0; d < cols; d++) {
+                    W.data[offset + d * stride] += alpha * buffer[k * cols + d];
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert to a dense matrix with the same shape as W (e.g. for gradient checking).
+     * @return a [rows x cols] matrix, or [cols x rows] if W is transposed
+     */
+    public DoubleMatrix toDense() {
+        DoubleMatrix g = transposed ? DoubleMatrix.zeros(cols, rows) : DoubleMatrix.zeros(rows, cols);
+        int stride = getWeightStride();
+        for (int k = 0; k < nTouched; k++) {
+            int offset = getWeightOffset(touched[k]);
+            for (int d = 0; d < cols; d++) {
+                g.data[offset + d * stride] = buffer[k * cols + d];
+            }
+        }
+        return g;
+    }
+}
@@ -16,22 +16,43 @@ public class Tanh implements Layer, java.io.Serializable {
 	private static final long serialVersionUID = -7444093094282163781L;
 	// for backward
     DoubleMatrix Y;
+
+    Workspace workspace = Workspace.NONE;
+    boolean training = true;  // in inference mode, forward keeps nothing for backward
     
     public Tanh() {}
 
+    @Override
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+    }
+
+    @Override
+    public void setTraining(boolean training) {
+        this.training = training;
+    }
+
     @Override
     public DoubleMatrix forward(Object input) {
         DoubleMatrix X = (DoubleMatrix)input;
         // Y[i] = tanh(X[i])
-        DoubleMatrix Y = MatrixFunctions.tanh(X);
-        this.Y = Y.dup();
+        DoubleMatrix Y = workspace.get(X.rows, X.columns);
+        for (int k = 0; k < X.length; k++) {
+            Y.data[k] = Math.tanh(X.data[k]);
+        }
+        if (training)
+            this.Y = workspace.copyOf(Y);
         return Y;
     }
 
     @Override
     public DoubleMatrix backward(DoubleMatrix gY) {
         // gX = gY . (1 - Y * Y)
-        return gY.mul((Y.mul(Y)).rsub(1));
+        DoubleMatrix gX = workspace.get(gY.rows, gY.columns);
+        for (int k = 0; k < gY.length; k++) {
+            gX.data[k] = gY.data[k] * (1 - Y.data[k] * Y.data[k]);
+        }
+        return gX;
     }
 
     @Override
@@ -44,6 +65,11 @@ public class Tanh implements Layer, java.io.Serializable {
         return grads;
     }
 
+    @Override
+    public Layer replicate() {
+        return new Tanh();
+    }
+
     @Override
     public String toString() {
         return "Tanh";
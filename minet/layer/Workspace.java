@@ -0,0 +1,143 @@
+// File: Workspace.java
+// Workspace class
+package minet.layer;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of matrices, keyed by shape, reused across mini-batches for activations,
+ * cached inputs and gradients (@see {@link Sequential}).
+ * Matrices handed out by {@link #get(int, int)} stay valid until the next {@link #reset()},
+ * after which they are handed out again, so in steady state no new matrix is allocated.
+ */
+public class Workspace implements java.io.Serializable {
+
+    private static final long serialVersionUID = -5802871140398236514L;
+
+    /**
+     * A workspace without pooling: every call to {@link #get(int, int)} allocates a new matrix.
+     * Used by layers that are not part of a {@link Sequential}.
+     */
+    public static final Workspace NONE = new Workspace(false);
+
+    /**
+     * All the buffers of one shape.
+     */
+    private static class Slot {
+        int rows, columns;
+        ArrayList<DoubleMatrix> buffers = new ArrayList<DoubleMatrix>();
+        int next;  // index of the next free buffer
+        ArrayList<FloatMatrix> floatBuffers = new ArrayList<FloatMatrix>();
+        int nextFloat;  // index of the next free float buffer
+    }
+
+    private final boolean pooled;
+    private transient ArrayList<Slot> slots;  // a handful of shapes, so a linear search is enough
+
+    public Workspace() {
+        this(true);
+    }
+
+    private Workspace(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    /**
+     * Get a matrix of the given shape. Its content is undefined.
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @return a [rows x columns] matrix, valid until the next {@link #reset()}
+     */
+    public DoubleMatrix get(int rows, int columns) {
+        if (!pooled)
+            return new DoubleMatrix(rows, columns);
+
+        Slot slot = getSlot(rows, columns);
+        if (slot.next == slot.buffers.size())
+            slot.buffers.add(new DoubleMatrix(rows, columns));
+        return slot.buffers.get(slot.next++);
+    }
+
+    /**
+     * Get a single-precision matrix of the given shape (@see {@link Precision}). Its content is undefined.
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @return a [rows x columns] matrix, valid until the next {@link #reset()}
+     */
+    public FloatMatrix getFloat(int rows, int columns) {
+        if (!pooled)
+            return new FloatMatrix(rows, columns);
+
+        Slot slot = getSlot(rows, columns);
+        if (slot.nextFloat == slot.floatBuffers.size())
+            slot.floatBuffers.add(new FloatMatrix(rows, columns));
+        return slot.floatBuffers.get(slot.nextFloat++);
+    }
+
+    /**
+     * Get a single-precision copy of a matrix.
+     * @param X the matrix to copy
+     * @return a float matrix with the same shape and content as X, valid until the next {@link #reset()}
+     */
+    public FloatMatrix floatCopyOf(DoubleMatrix X) {
+        FloatMatrix M = getFloat(X.rows, X.columns);
+        for (int i = 0; i < X.length; i++) {
+            M.data[i] = (float) X.data[i];
+        }
+        return M;
+    }
+
+    /**
+     * Get a matrix of the given shape filled with 0.
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @return a [rows x columns] zero matrix, valid until the next {@link #reset()}
+     */
+    public DoubleMatrix zeros(int rows, int columns) {
+        DoubleMatrix M = get(rows, columns);
+        if (pooled)
+            M.fill(0);
+        return M;
+    }
+
+    /**
+     * Get a copy of a matrix.
+     * @param X the matrix to copy
+     * @return a matrix with the same shape and content as X, valid until the next {@link #reset()}
+     */
+    public DoubleMatrix copyOf(DoubleMatrix X) {
+        DoubleMatrix M = get(X.rows, X.columns);
+        System.arraycopy(X.data, 0, M.data, 0, X.length);
+        return M;
+    }
+
+    /**
+     * Make all the matrices handed out so far available again.
+     */
+    public void reset() {
+        if (slots == null)
+            return;
+        for (int i = 0; i < slots.size(); i++) {
+            slots.get(i).next = 0;
+            slots.get(i).nextFloat = 0;
+        }
+    }
+
+    private Slot getSlot(int rows, int columns) {
+        if (slots == null)
+            slots = new ArrayList<Slot>();
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            if (slot.rows == rows && slot.columns == columns)
+                return slot;
+        }
+        Slot slot = new Slot();
+        slot.rows = rows;
+        slot.columns = columns;
+        slots.add(slot);
+        return slot;
+    }
+}
@@ -2,6 +2,7 @@
 // CrossEntropy class
 package minet.loss;
 
+import minet.layer.Workspace;
 import org.jblas.DoubleMatrix;
 
 /**
@@ -12,6 +13,8 @@ public class CrossEntropy implements Loss {
     DoubleMatrix Yhat;
     int[] labels;
 
+    Workspace workspace = new Workspace();  // reset at each forward
+
     /**
      * Constructor for CrossEntropy loss function
      */
@@ -25,8 +28,10 @@ public class CrossEntropy implements Loss {
      */
     @Override
     public double forward(DoubleMatrix Y, DoubleMatrix Yhat) {
-        this.Yhat = Yhat.dup();
-        this.labels = new int[Y.length];
+        workspace.reset();
+        this.Yhat = workspace.copyOf(Yhat);
+        if (this.labels == null || this.labels.length != Y.length)
+            this.labels = new int[Y.length];
         for (int i = 0; i < Y.length; i++) {
             this.labels[i] = (int) Y.data[i];
         }
@@ -44,7 +49,7 @@ public class CrossEntropy implements Loss {
      */
     @Override
     public DoubleMatrix backward() {
-        DoubleMatrix dY = DoubleMatrix.zeros(this.Yhat.rows, this.Yhat.columns);
+        DoubleMatrix dY = workspace.zeros(this.Yhat.rows, this.Yhat.columns);
         for (int i = 0; i < this.labels.length; i++) {
             dY.put(i, this.labels[i], -1 / (this.Yhat.get(i, this.labels[i]) + 1e-7));
         }
@@ -0,0 +1,78 @@
+// File: SoftmaxCrossEntropy.java
+// SoftmaxCrossEntropy class
+package minet.loss;
+
+import minet.layer.Workspace;
+import org.jblas.DoubleMatrix;
+
+/**
+ * A class for computing cross entropy loss directly from unnormalised scores (logits), i.e. a softmax
+ * followed by {@link CrossEntropy}, fused. It replaces the trailing Softmax layer of a network:
+ * the loss of a row is {@literal log(sum_j exp(x[j])) - x[y]}, and the gradient wrt the logits is
+ * {@literal (softmax(x) - onehot(y)) / minibatch_size}, both computed in a single pass over the logits.
+ * Since softmax does not change the order of the scores, the predicted class is still the row argmax
+ * of the network output.
+ */
+public class SoftmaxCrossEntropy implements Loss {
+    DoubleMatrix gX;
+
+    Workspace workspace = new Workspace();  // reset at each forward
+
+    /**
+     * Constructor for SoftmaxCrossEntropy loss function
+     */
+    public SoftmaxCrossEntropy() { }
+
+    /**
+     * Compute a loss value given groud-truth Y and logits X (and, at the same time, the gradient wrt X)
+     * @param Y a [minibatch_size x 1] matrix, each row is the ground-truth label of an instance
+     * @param X a [minibatch_size x d] matrix, each row contains the (unnormalised) scores of the categories
+     * @return the loss value (a double)
+     */
+    @Override
+    public double forward(DoubleMatrix Y, DoubleMatrix X) {
+        workspace.reset();
+        int n = X.rows;
+        this.gX = workspace.get(n, X.columns);
+
+        double lossVal = 0;
+        for (int i = 0; i < n; i++) {
+            int label = (int) Y.data[i];
+
+            double maxVal = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < X.columns; j++) {
+                maxVal = Math.max(maxVal, X.data[j * n + i]);
+            }
+            double norm = 0;
+            for (int j = 0; j < X.columns; j++) {
+                double e = Math.exp(X.data[j * n + i] - maxVal);
+                gX.data[j * n + i] = e;
+                norm += e;
+            }
+
+            // -log softmax(x)[y] = log(norm) - (x[y] - max)
+            lossVal += Math.log(norm) - (X.data[label * n + i] - maxVal);
+
+            double scale = 1. / (norm * n);
+            for (int j = 0; j < X.columns; j++) {
+                gX.data[j * n + i] *= scale;
+            }
+            gX.data[label * n + i] -= 1. / n;
+        }
+        return lossVal / n;
+    }
+
+    /**
+     * Compute gradient of the loss wrt the logits
+     * @return a matrix (DoubleMatrix), with #rows = #samples, #cols = #output nodes of the network
+     */
+    @Override
+    public DoubleMatrix backward() {
+        return this.gX;
+    }
+
+    @Override
+    public String toString() {
+        return "SoftmaxCrossEntropyLoss";
+    }
+}
@@ -0,0 +1,48 @@
+// File: AdaGrad.java
+// AdaGrad class
+package minet.optim;
+
+import minet.layer.Layer;
+
+/**
+ * AdaGrad: h = h + g^2, w = w - lr * g / (sqrt(h) + eps).
+ * A zero gradient changes neither h nor w, so the lazy update of sparse tables is exact.
+ */
+public class AdaGrad extends MomentOptimizer {
+    double eps = 1e-10;
+
+    /**
+     * @param net the network
+     * @param learningRate the learning rate
+     */
+    public AdaGrad(Layer net, double learningRate) {
+        super(net, learningRate, 1);
+    }
+
+    @Override
+    protected void updateDense(int p, double[] w, double[] g) {
+        double[] h = dense[0][p];
+        for (int i = 0; i < w.length; i++) {
+            h[i] += g[i] * g[i];
+            w[i] -= lr * g[i] / (Math.sqrt(h[i]) + eps);
+        }
+    }
+
+    @Override
+    protected void updateRow(int table, int row, int skipped, double[] g, int gOffset,
+                             double[] W, float[] Wf, int wOffset, int wStride, int cols) {
+        double[] h = sparse[0][table];
+        int hOffset = row * cols;
+        for (int d = 0; d < cols; d++) {
+            double gd = g[gOffset + d];
+            double hd = h[hOffset + d] + gd * gd;
+            h[hOffset + d] = hd;
+            addTo(W, Wf, wOffset + d * wStride, -lr * gd / (Math.sqrt(hd) + eps));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AdaGrad(lr=%s)", lr);
+    }
+}
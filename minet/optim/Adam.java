@@ -0,0 +1,87 @@
+// File: Adam.java
+// Adam class
+package minet.optim;
+
+import minet.layer.Layer;
+
+/**
+ * Adam: m = b1 * m + (1 - b1) * g, v = b2 * v + (1 - b2) * g^2,
+ * w = w - lr * m' / (sqrt(v') + eps), where m' and v' are the bias-corrected moments.
+ * Sparse tables are updated lazily: when a row is touched again after n steps, its moments are first
+ * decayed by b1^n and b2^n (as n steps with a zero gradient would), but the weight steps of the skipped
+ * iterations are not replayed (also when flushed).
+ */
+public class Adam extends MomentOptimizer {
+    double beta1, beta2;
+    double eps = 1e-8;
+
+    /**
+     * Adam with the usual betas (0.9, 0.999).
+     * @param net the network
+     * @param learningRate the learning rate (e.g. 0.001)
+     */
+    public Adam(Layer net, double learningRate) {
+        this(net, learningRate, 0.9, 0.999);
+    }
+
+    /**
+     * @param net the network
+     * @param learningRate the learning rate
+     * @param beta1 the decay of the first moment
+     * @param beta2 the decay of the second moment
+     */
+    public Adam(Layer net, double learningRate, double beta1, double beta2) {
+        super(net, learningRate, 2);
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+    }
+
+    @Override
+    protected void updateDense(int p, double[] w, double[] g) {
+        double[] m = dense[0][p], v = dense[1][p];
+        double c1 = 1 / (1 - Math.pow(beta1, step)), c2 = 1 / (1 - Math.pow(beta2, step));
+        for (int i = 0; i < w.length; i++) {
+            m[i] = beta1 * m[i] + (1 - beta1) * g[i];
+            v[i] = beta2 * v[i] + (1 - beta2) * g[i] * g[i];
+            w[i] -= lr * (m[i] * c1) / (Math.sqrt(v[i] * c2) + eps);
+        }
+    }
+
+    @Override
+    protected void updateRow(int table, int row, int skipped, double[] g, int gOffset,
+                             double[] W, float[] Wf, int wOffset, int wStride, int cols) {
+        double[] m = sparse[0][table], v = sparse[1][table];
+        int offset = row * cols;
+        double c1 = 1 / (1 - Math.pow(beta1, step)), c2 = 1 / (1 - Math.pow(beta2, step));
+        // the decay of the skipped steps and of this one
+        double b1 = beta1, b2 = beta2;
+        if (skipped > 0) {
+            b1 = Math.pow(beta1, skipped + 1);
+            b2 = Math.pow(beta2, skipped + 1);
+        }
+        for (int d = 0; d < cols; d++) {
+            double gd = g[gOffset + d];
+            double md = b1 * m[offset + d] + (1 - beta1) * gd;
+            double vd = b2 * v[offset + d] + (1 - beta2) * gd * gd;
+            m[offset + d] = md;
+            v[offset + d] = vd;
+            addTo(W, Wf, wOffset + d * wStride, -lr * (md * c1) / (Math.sqrt(vd * c2) + eps));
+        }
+    }
+
+    @Override
+    protected void catchUp(int table, int row, int skipped, double[] W, float[] Wf, int wOffset, int wStride, int cols) {
+        double[] m = sparse[0][table], v = sparse[1][table];
+        int offset = row * cols;
+        double b1 = Math.pow(beta1, skipped), b2 = Math.pow(beta2, skipped);
+        for (int d = 0; d < cols; d++) {
+            m[offset + d] *= b1;
+            v[offset + d] *= b2;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Adam(lr=%s, beta1=%s, beta2=%s)", lr, beta1, beta2);
+    }
+}
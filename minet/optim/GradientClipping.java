@@ -0,0 +1,62 @@
+// File: GradientClipping.java
+// GradientClipping class
+package minet.optim;
+
+import minet.layer.Layer;
+import minet.layer.Parameters;
+import minet.layer.SparseGradient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Clips the gradients by their global norm before each update of the wrapped optimizer: if the L2 norm of all
+ * the gradients (dense and sparse) exceeds maxNorm, they are all scaled by maxNorm / norm, which keeps their
+ * direction (see <a href="https://arxiv.org/abs/1211.5063">paper</a>).
+ */
+public class GradientClipping extends OptimizerWrapper {
+    Parameters params;
+    List<SparseGradient> sparseGrads;
+    double maxNorm;
+    double lastNorm;  // the norm of the gradients at the last update, before clipping
+
+    /**
+     * Constructor for GradientClipping.
+     * @param net the network, whose gradients are clipped
+     * @param optimizer the optimizer of the network
+     * @param maxNorm the maximum global norm of the gradients
+     */
+    public GradientClipping(Layer net, Optimizer optimizer, double maxNorm) {
+        super(optimizer);
+        if (maxNorm <= 0)
+            throw new IllegalArgumentException("maxNorm must be positive");
+        this.params = new Parameters(net);
+        this.sparseGrads = net.getAllSparseGradients(new ArrayList<SparseGradient>());
+        this.maxNorm = maxNorm;
+    }
+
+    /**
+     * Get the global norm of the gradients at the last update, before clipping.
+     * @return the norm
+     */
+    public double getLastNorm() {
+        return lastNorm;
+    }
+
+    @Override
+    public void updateWeights() {
+        double sum = params.gradientNormSquared();
+        for (SparseGradient sg : sparseGrads) {
+            sum += sg.normSquared();
+        }
+        lastNorm = Math.sqrt(sum);
+        if (lastNorm > maxNorm) {
+            double scale = maxNorm / lastNorm;
+            params.scaleGradients(scale);
+            for (SparseGradient sg : sparseGrads) {
+                sg.muli(scale);
+            }
+        }
+        optimizer.updateWeights();
+    }
+}
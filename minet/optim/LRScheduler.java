@@ -0,0 +1,202 @@
+// File: LRScheduler.java
+// LRScheduler class
+package minet.optim;
+
+/**
+ * Changes the learning rate of the wrapped optimizer during training. The learning rate of an update is
+ * {@code baseLr * schedule(epoch) * warmup(step) * plateau}, where:
+ * 1) the schedule decays it over the epochs (@see {@link #constant()}, {@link #stepDecay(int, double)},
+ *    {@link #cosine(int, double)}),
+ * 2) the warmup increases it linearly over the first updates (@see {@link #setWarmup(int)}), and
+ * 3) the plateau factor is reduced whenever the validation performance passed to {@link #endEpoch(double)}
+ *    stops improving (@see {@link #setReduceOnPlateau(int, double, double)}).
+ * The trainer must call {@link #endEpoch(double)} at the end of each epoch.
+ */
+public class LRScheduler extends OptimizerWrapper {
+
+    /**
+     * A decay of the learning rate over the epochs.
+     */
+    public interface Schedule extends java.io.Serializable {
+        /**
+         * @param epoch the current epoch (from 0)
+         * @return the factor applied to the base learning rate
+         */
+        double factor(int epoch);
+    }
+
+    /**
+     * The state of a scheduler, @see {@link #getState()}.
+     */
+    static class State implements java.io.Serializable {
+        private static final long serialVersionUID = -5205870924187245716L;
+
+        java.io.Serializable optimizerState;
+        double baseLr;
+        int step;
+        int epoch;
+        double plateauFactor;
+        double best;
+        int badEpochs;
+    }
+
+    Schedule schedule;
+    double baseLr;
+    int step;             // the number of updates so far
+    int epoch;            // the number of finished epochs
+    int warmupSteps;      // the number of updates over which the learning rate increases to its scheduled value
+    int plateauPatience;  // the number of epochs without improvement before the learning rate is reduced, 0 if not used
+    double plateauDecay;
+    double minLr;
+    double plateauFactor = 1;
+    double best = Double.NEGATIVE_INFINITY;  // the best validation performance so far
+    int badEpochs;        // the number of consecutive epochs without improvement
+
+    /**
+     * Constructor for LRScheduler. The current learning rate of the optimizer is the base learning rate.
+     * @param optimizer the optimizer
+     * @param schedule the decay of the learning rate over the epochs
+     */
+    public LRScheduler(Optimizer optimizer, Schedule schedule) {
+        super(optimizer);
+        this.schedule = schedule;
+        this.baseLr = optimizer.getLearningRate();
+        optimizer.setLearningRate(getLearningRate());
+    }
+
+    /**
+     * A constant learning rate (e.g. with only a warmup or reduce-on-plateau).
+     * @return the schedule
+     */
+    public static Schedule constant() {
+        return epoch -> 1;
+    }
+
+    /**
+     * Multiply the learning rate by gamma every few epochs.
+     * @param epochs the number of epochs between two decays
+     * @param gamma the decay factor
+     * @return the schedule
+     */
+    public static Schedule stepDecay(int epochs, double gamma) {
+        return epoch -> Math.pow(gamma, epoch / epochs);
+    }
+
+    /**
+     * Decay the learning rate along half a cosine, from the base learning rate to minFactor times it
+     * at the last epoch (see <a href="https://arxiv.org/abs/1608.03983">paper</a>).
+     * @param epochs the number of epochs of the decay
+     * @param minFactor the final factor of the base learning rate
+     * @return the schedule
+     */
+    public static Schedule cosine(int epochs, double minFactor) {
+        return epoch -> minFactor + (1 - minFactor) * 0.5 * (1 + Math.cos(Math.PI * Math.min(epoch, epochs) / epochs));
+    }
+
+    /**
+     * Increase the learning rate linearly from baseLr / steps to its scheduled value over the first updates.
+     * @param steps the number of updates of the warmup
+     * @return this scheduler
+     */
+    public LRScheduler setWarmup(int steps) {
+        this.warmupSteps = steps;
+        optimizer.setLearningRate(getLearningRate());
+        return this;
+    }
+
+    /**
+     * Get the number of updates of the warmup.
+     * @return the number of updates, 0 without warmup
+     */
+    public int getWarmup() {
+        return warmupSteps;
+    }
+
+    /**
+     * Multiply the learning rate by decay whenever the validation performance has not improved for
+     * patience epochs, without going below minLr.
+     * @param patience the number of epochs without improvement
+     * @param decay the decay factor
+     * @param minLr the minimum learning rate
+     * @return this scheduler
+     */
+    public LRScheduler setReduceOnPlateau(int patience, double decay, double minLr) {
+        this.plateauPatience = patience;
+        this.plateauDecay = decay;
+        this.minLr = minLr;
+        return this;
+    }
+
+    /**
+     * Get the learning rate of the next update.
+     * @return the learning rate
+     */
+    @Override
+    public double getLearningRate() {
+        double lr = baseLr * schedule.factor(epoch) * plateauFactor;
+        if (step < warmupSteps) {
+            lr *= (step + 1.0) / warmupSteps;
+        }
+        return lr;
+    }
+
+    /**
+     * Set the base learning rate.
+     * @param lr the base learning rate
+     */
+    @Override
+    public void setLearningRate(double lr) {
+        this.baseLr = lr;
+        optimizer.setLearningRate(getLearningRate());
+    }
+
+    @Override
+    public void updateWeights() {
+        optimizer.setLearningRate(getLearningRate());
+        optimizer.updateWeights();
+        step++;
+    }
+
+    @Override
+    public void endEpoch(double metric) {
+        epoch++;
+        if (Double.isNaN(metric)) {
+            // not evaluated at this epoch
+        } else if (metric > best) {
+            best = metric;
+            badEpochs = 0;
+        } else if (plateauPatience > 0 && ++badEpochs >= plateauPatience) {
+            badEpochs = 0;
+            plateauFactor = Math.max(plateauFactor * plateauDecay, minLr / baseLr);
+        }
+        optimizer.endEpoch(metric);
+        // the optimizer also runs at the new rate when it is used directly (e.g. by Hogwild)
+        optimizer.setLearningRate(getLearningRate());
+    }
+
+    @Override
+    public java.io.Serializable getState() {
+        State state = new State();
+        state.optimizerState = optimizer.getState();
+        state.baseLr = baseLr;
+        state.step = step;
+        state.epoch = epoch;
+        state.plateauFactor = plateauFactor;
+        state.best = best;
+        state.badEpochs = badEpochs;
+        return state;
+    }
+
+    @Override
+    public void setState(java.io.Serializable state) {
+        State s = (State) state;
+        optimizer.setState(s.optimizerState);
+        this.baseLr = s.baseLr;
+        this.step = s.step;
+        this.epoch = s.epoch;
+        this.plateauFactor = s.plateauFactor;
+        this.best = s.best;
+        this.badEpochs = s.badEpochs;
+        optimizer.setLearningRate(getLearningRate());
+    }
+}
@@ -0,0 +1,233 @@
+// File: MomentOptimizer.java
+// MomentOptimizer class
+package minet.optim;
+
+import minet.layer.Layer;
+import minet.layer.Parameters;
+import minet.layer.SparseGradient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class of the optimizers keeping running estimates (moments) of the gradients of each parameter,
+ * e.g. {@link Momentum}, {@link AdaGrad} and {@link Adam}. Parameters are updated in place.
+ * Tables with a row-sparse gradient (@see {@link SparseGradient}) are updated lazily: only the touched
+ * rows are updated at each step, and the decay of the moments of a row over the steps it was not touched
+ * is applied when it is touched again, so the cost of a step does not depend on the number of rows.
+ * The skipped steps are applied at the learning rate of the step which catches up, so this is exact for
+ * a constant learning rate; {@link #flush()} catches up all the rows, and is called at the end of each
+ * epoch so that epoch-level schedules stay exact and the weights are up to date for evaluation and
+ * checkpoints. The moments of a table are allocated when one of its rows is first touched (frozen tables
+ * have no gradient, @see {@link Layer#getAllSparseGradients(List)}).
+ */
+public abstract class MomentOptimizer implements Optimizer {
+    Parameters params;
+    List<SparseGradient> sparseGrads;
+    double lr;
+    int step;             // the number of updates so far
+    double[][][] dense;   // [moment][parameter] the moments of the dense parameters, in the order of their data
+    double[][][] sparse;  // [moment][table] the moments of the tables, [rows x cols] row-major, null until touched
+    int[][] lastStep;     // [table][row] the step of the last update of each row of the tables, null until touched
+
+    /**
+     * The state of a moment optimizer, @see {@link #getState()}.
+     */
+    static class State implements java.io.Serializable {
+        private static final long serialVersionUID = 6013985413770839236L;
+
+        double lr;
+        int step;
+        double[][][] dense;
+        double[][][] sparse;
+        int[][] lastStep;
+    }
+
+    /**
+     * @param net the network
+     * @param learningRate the learning rate
+     * @param nMoments the number of moments kept for each parameter
+     */
+    protected MomentOptimizer(Layer net, double learningRate, int nMoments) {
+        this.lr = learningRate;
+
+        this.params = new Parameters(net);
+        this.sparseGrads = net.getAllSparseGradients(new ArrayList<SparseGradient>());
+
+        this.dense = new double[nMoments][params.count()][];
+        this.sparse = new double[nMoments][sparseGrads.size()][];
+        for (int i = 0; i < nMoments; i++) {
+            for (int p = 0; p < params.count(); p++) {
+                dense[i][p] = new double[params.getWeights(p).length];
+            }
+        }
+        this.lastStep = new int[sparseGrads.size()][];
+    }
+
+    /**
+     * Set learning rate.
+     * @param lr a double
+     */
+    public void setLearningRate(double lr) {
+        this.lr = lr;
+    }
+
+    /**
+     * Get learning rate.
+     * @return the learning rate (a double)
+     */
+    public double getLearningRate() {
+        return this.lr;
+    }
+
+    @Override
+    public void resetGradients() {
+        params.zeroGradients();
+        // only the rows touched since the last reset are cleared
+        for (SparseGradient sg : sparseGrads) {
+            sg.reset();
+        }
+    }
+
+    @Override
+    public void updateWeights() {
+        step++;
+        for (int p = 0; p < params.count(); p++) {
+            updateDense(p, params.getWeights(p), params.getGradients(p));
+        }
+
+        // only the touched rows are updated
+        for (int j = 0; j < sparseGrads.size(); j++) {
+            SparseGradient sg = sparseGrads.get(j);
+            if (sg.getNumTouchedRows() == 0)
+                continue;
+            if (lastStep[j] == null) {
+                // first touched: the rows start with zero moments, as if updated at step 0
+                for (double[][] moment : sparse) {
+                    moment[j] = new double[sg.getRows() * sg.getCols()];
+                }
+                lastStep[j] = new int[sg.getRows()];
+            }
+            double[] W = sg.getWeights() != null ? sg.getWeights().data : null;
+            float[] Wf = sg.getFloatWeights() != null ? sg.getFloatWeights().data : null;
+            for (int k = 0; k < sg.getNumTouchedRows(); k++) {
+                int row = sg.getTouchedRow(k);
+                int skipped = step - 1 - lastStep[j][row];
+                lastStep[j][row] = step;
+                updateRow(j, row, skipped, sg.getBuffer(), k * sg.getCols(), W, Wf,
+                        sg.getWeightOffset(row), sg.getWeightStride(), sg.getCols());
+            }
+        }
+    }
+
+    /**
+     * Catch up all the rows of the tables with the steps they were not touched, so that the weights and the
+     * moments are those of an eager update of every row at every step.
+     */
+    @Override
+    public void flush() {
+        for (int j = 0; j < sparseGrads.size(); j++) {
+            if (lastStep[j] == null)
+                continue;
+            SparseGradient sg = sparseGrads.get(j);
+            double[] W = sg.getWeights() != null ? sg.getWeights().data : null;
+            float[] Wf = sg.getFloatWeights() != null ? sg.getFloatWeights().data : null;
+            for (int row = 0; row < lastStep[j].length; row++) {
+                int skipped = step - lastStep[j][row];
+                if (skipped > 0) {
+                    catchUp(j, row, skipped, W, Wf, sg.getWeightOffset(row), sg.getWeightStride(), sg.getCols());
+                    lastStep[j][row] = step;
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply steps with a zero gradient to a row of a table, e.g. decay its moments. By default, the skipped
+     * steps do not change the row.
+     * @param table the index of the table (in the moments)
+     * @param row the row
+     * @param skipped the number of steps
+     * @param W the double-precision table, or null
+     * @param Wf the single-precision table, or null
+     * @param wOffset the position of the first value of the row in the table
+     * @param wStride the distance between two values of the row in the table
+     * @param cols the length of the row
+     */
+    protected void catchUp(int table, int row, int skipped, double[] W, float[] Wf, int wOffset, int wStride, int cols) {
+    }
+
+    /**
+     * Update a dense parameter in place.
+     * @param p the index of the parameter (in the moments)
+     * @param w the values of the parameter
+     * @param g its gradient
+     */
+    protected abstract void updateDense(int p, double[] w, double[] g);
+
+    /**
+     * Update a touched row of a table in place, first catching up with the steps it was not touched.
+     * @param table the index of the table (in the moments)
+     * @param row the row
+     * @param skipped the number of steps since the last update of the row (with a zero gradient)
+     * @param g the gradient buffer, the gradient of the row starts at gOffset
+     * @param gOffset the position of the gradient of the row in g
+     * @param W the double-precision table, or null
+     * @param Wf the single-precision table, or null
+     * @param wOffset the position of the first value of the row in the table
+     * @param wStride the distance between two values of the row in the table
+     * @param cols the length of the row
+     */
+    protected abstract void updateRow(int table, int row, int skipped, double[] g, int gOffset,
+                                      double[] W, float[] Wf, int wOffset, int wStride, int cols);
+
+    /**
+     * Add a value to an entry of a (double or single-precision) table.
+     */
+    static void addTo(double[] W, float[] Wf, int index, double delta) {
+        if (W != null) {
+            W[index] += delta;
+        } else {
+            Wf[index] += (float) delta;
+        }
+    }
+
+    @Override
+    public java.io.Serializable getState() {
+        State state = new State();
+        state.lr = lr;
+        state.step = step;
+        state.dense = deepCopy(dense);
+        state.sparse = deepCopy(sparse);
+        state.lastStep = new int[lastStep.length][];
+        for (int j = 0; j < lastStep.length; j++) {
+            state.lastStep[j] = lastStep[j] == null ? null : lastStep[j].clone();
+        }
+        return state;
+    }
+
+    @Override
+    public void setState(java.io.Serializable state) {
+        State s = (State) state;
+        if (s.dense.length != dense.length || s.dense[0].length != dense[0].length || s.sparse[0].length != sparse[0].length)
+            throw new IllegalArgumentException("the saved state does not match the optimizer");
+        this.lr = s.lr;
+        this.step = s.step;
+        this.dense = deepCopy(s.dense);
+        this.sparse = deepCopy(s.sparse);
+        for (int j = 0; j < lastStep.length; j++) {
+            lastStep[j] = s.lastStep[j] == null ? null : s.lastStep[j].clone();
+        }
+    }
+
+    private static double[][][] deepCopy(double[][][] moments) {
+        double[][][] copy = new double[moments.length][][];
+        for (int i = 0; i < moments.length; i++) {
+            copy[i] = new double[moments[i].length][];
+            for (int p = 0; p < moments[i].length; p++) {
+                copy[i][p] = moments[i][p] == null ? null : moments[i][p].clone();
+            }
+        }
+        return copy;
+    }
+}
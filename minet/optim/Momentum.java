@@ -0,0 +1,70 @@
+// File: Momentum.java
+// Momentum class
+package minet.optim;
+
+import minet.layer.Layer;
+
+/**
+ * SGD with momentum: v = mu * v + g, w = w - lr * v.
+ * A row of a sparse table skipped for n steps has kept moving with its decaying velocity:
+ * it is caught up when touched again (or flushed), by w -= lr * v * (mu + ... + mu^n) and v *= mu^n,
+ * which is exact if the learning rate did not change over the skipped steps.
+ */
+public class Momentum extends MomentOptimizer {
+    double mu;  // the momentum
+
+    /**
+     * @param net the network
+     * @param learningRate the learning rate
+     * @param momentum the momentum (e.g. 0.9)
+     */
+    public Momentum(Layer net, double learningRate, double momentum) {
+        super(net, learningRate, 1);
+        this.mu = momentum;
+    }
+
+    @Override
+    protected void updateDense(int p, double[] w, double[] g) {
+        double[] v = dense[0][p];
+        for (int i = 0; i < w.length; i++) {
+            v[i] = mu * v[i] + g[i];
+            w[i] -= lr * v[i];
+        }
+    }
+
+    @Override
+    protected void updateRow(int table, int row, int skipped, double[] g, int gOffset,
+                             double[] W, float[] Wf, int wOffset, int wStride, int cols) {
+        double[] v = sparse[0][table];
+        int vOffset = row * cols;
+        double decay = 1, travel = 0;  // mu^n and mu + ... + mu^n
+        if (skipped > 0) {
+            decay = Math.pow(mu, skipped);
+            travel = mu == 1 ? skipped : mu * (1 - decay) / (1 - mu);
+        }
+        for (int d = 0; d < cols; d++) {
+            double vd = v[vOffset + d];
+            double delta = -lr * vd * travel;
+            vd = mu * vd * decay + g[gOffset + d];
+            v[vOffset + d] = vd;
+            addTo(W, Wf, wOffset + d * wStride, delta - lr * vd);
+        }
+    }
+
+    @Override
+    protected void catchUp(int table, int row, int skipped, double[] W, float[] Wf, int wOffset, int wStride, int cols) {
+        double[] v = sparse[0][table];
+        int vOffset = row * cols;
+        double decay = Math.pow(mu, skipped);
+        double travel = mu == 1 ? skipped : mu * (1 - decay) / (1 - mu);
+        for (int d = 0; d < cols; d++) {
+            addTo(W, Wf, wOffset + d * wStride, -lr * v[vOffset + d] * travel);
+            v[vOffset + d] *= decay;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Momentum(lr=%s, momentum=%s)", lr, mu);
+    }
+}
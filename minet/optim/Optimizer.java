@@ -23,4 +23,49 @@ public interface Optimizer {
      * Update parameters using the gradients computed by {@link minet.layer.Layer#backward(DoubleMatrix)}.
      */
     public void updateWeights();
+
+    /**
+     * Get the current learning rate.
+     * @return the learning rate
+     */
+    public double getLearningRate();
+
+    /**
+     * Set the learning rate.
+     * @param lr the learning rate
+     */
+    public void setLearningRate(double lr);
+
+    /**
+     * Apply the updates an optimizer has deferred (e.g. the lazy updates of the rows of embedding tables
+     * which were not touched by the last steps), so that the weights are up to date. Called at the end of
+     * each training epoch, before evaluating or saving the network.
+     */
+    public default void flush() {
+    }
+
+    /**
+     * Called at the end of each training epoch with the validation performance, e.g. so that a
+     * {@link LRScheduler} can decay the learning rate.
+     * @param metric the validation performance (higher is better, e.g. the dev accuracy), or NaN if the
+     *               validation set was not evaluated at this epoch
+     */
+    public default void endEpoch(double metric) {
+    }
+
+    /**
+     * Get the state of the optimizer (e.g. its learning rate), to be saved with a checkpoint
+     * so that training can be resumed.
+     * @return a copy of the state, or null if the optimizer has no state
+     */
+    public default java.io.Serializable getState() {
+        return null;
+    }
+
+    /**
+     * Restore a state returned by {@link #getState()}.
+     * @param state the saved state
+     */
+    public default void setState(java.io.Serializable state) {
+    }
 }
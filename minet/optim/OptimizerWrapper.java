@@ -0,0 +1,79 @@
+// File: OptimizerWrapper.java
+// OptimizerWrapper class
+package minet.optim;
+
+/**
+ * Base class of the optimizers that change how another optimizer is applied (e.g. {@link LRScheduler}
+ * and {@link GradientClipping}). Every method is forwarded to the wrapped optimizer unless overridden,
+ * so wrappers can be stacked.
+ */
+public abstract class OptimizerWrapper implements Optimizer {
+    protected final Optimizer optimizer;
+
+    /**
+     * @param optimizer the wrapped optimizer
+     */
+    protected OptimizerWrapper(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    /**
+     * Get the wrapped optimizer.
+     * @return the wrapped optimizer
+     */
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    /**
+     * Get the innermost optimizer of a stack of wrappers (e.g. the {@link SGD} used by Hogwild training).
+     * @param optimizer an optimizer, possibly wrapped
+     * @return the optimizer which does the updates
+     */
+    public static Optimizer unwrap(Optimizer optimizer) {
+        while (optimizer instanceof OptimizerWrapper) {
+            optimizer = ((OptimizerWrapper) optimizer).getOptimizer();
+        }
+        return optimizer;
+    }
+
+    @Override
+    public void resetGradients() {
+        optimizer.resetGradients();
+    }
+
+    @Override
+    public void updateWeights() {
+        optimizer.updateWeights();
+    }
+
+    @Override
+    public double getLearningRate() {
+        return optimizer.getLearningRate();
+    }
+
+    @Override
+    public void setLearningRate(double lr) {
+        optimizer.setLearningRate(lr);
+    }
+
+    @Override
+    public void flush() {
+        optimizer.flush();
+    }
+
+    @Override
+    public void endEpoch(double metric) {
+        optimizer.endEpoch(metric);
+    }
+
+    @Override
+    public java.io.Serializable getState() {
+        return optimizer.getState();
+    }
+
+    @Override
+    public void setState(java.io.Serializable state) {
+        optimizer.setState(state);
+    }
+}
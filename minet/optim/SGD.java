@@ -3,11 +3,11 @@
 package minet.optim;
 
 import minet.layer.Layer;
-import org.jblas.DoubleMatrix;
+import minet.layer.Parameters;
+import minet.layer.SparseGradient;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 
 
 /**
@@ -15,17 +15,17 @@ import java.util.ListIterator;
  * @author Phong Le
  */
 public class SGD implements Optimizer {
-    List<DoubleMatrix> weights;
-    List<DoubleMatrix> grads;
+    Parameters params;
+    List<SparseGradient> sparseGrads;
     double lr;
 
     public SGD(Layer net, double learningRate) {
         this.lr = learningRate;
 
-        this.weights = new LinkedList<DoubleMatrix>();
-        this.grads = new LinkedList<DoubleMatrix>();
-        net.getAllWeights(this.weights);
-        net.getAllGradients(this.grads);
+        this.params = new Parameters(net);
+
+        this.sparseGrads = new LinkedList<SparseGradient>();
+        net.getAllSparseGradients(this.sparseGrads);
     }
 
     /**
@@ -44,23 +44,51 @@ public class SGD implements Optimizer {
         return this.lr;
     }
 
+    @Override
+    public java.io.Serializable getState() {
+        return this.lr;
+    }
+
+    @Override
+    public void setState(java.io.Serializable state) {
+        this.lr = (Double) state;
+    }
+
     @Override
     public void resetGradients() {
-        ListIterator<DoubleMatrix> gIter = this.grads.listIterator();
-        while (gIter.hasNext()) {
-            DoubleMatrix g = gIter.next();
-            g.fill(0);
+        this.params.zeroGradients();
+
+        // only the rows touched since the last reset are cleared
+        for (SparseGradient sg : this.sparseGrads) {
+            sg.reset();
         }
     }
 
     @Override
     public void updateWeights() {
-        ListIterator<DoubleMatrix> wIter = this.weights.listIterator();
-        ListIterator<DoubleMatrix> gIter = this.grads.listIterator();
-        while (gIter.hasNext() && wIter.hasNext()) {
-            DoubleMatrix w = wIter.next();
-            DoubleMatrix g = gIter.next();
-            w.addi(g.mul(-this.lr));
+        // in place, without a temporary matrix
+        this.params.addGradientsToWeights(-this.lr);
+
+        // only the touched rows are updated
+        for (SparseGradient sg : this.sparseGrads) {
+            sg.addiToWeights(-this.lr);
+        }
+    }
+
+    /**
+     * Asynchronous (Hogwild) update of the shared weights using the gradients of a replica of
+     * the network (@see {@link Layer#replicate()}). Several threads may call this concurrently
+     * without locking: updates are applied in place and conflicting writes are tolerated.
+     * @param replicaParams the parameters of the replica, whose weights are the shared weights
+     * @param replicaSparseGrads the sparse gradients of the replica, which update the shared weights directly
+     */
+    public void updateWeightsAsync(Parameters replicaParams, List<SparseGradient> replicaSparseGrads) {
+        double alpha = -this.lr;
+        replicaParams.addGradientsToWeights(alpha);
+
+        // only the touched rows are updated, so conflicts between threads are rare
+        for (SparseGradient sg : replicaSparseGrads) {
+            sg.addiToWeights(alpha);
         }
     }
 }
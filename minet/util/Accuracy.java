@@ -0,0 +1,39 @@
+// File: Accuracy.java
+// Accuracy class
+package minet.util;
+
+import org.jblas.DoubleMatrix;
+
+/**
+ * Counting of the correct predictions of a classifier, whose predicted class is the row argmax of the
+ * network output (scores, logits or probabilities).
+ */
+public class Accuracy {
+
+    private Accuracy() { }
+
+    /**
+     * Count the correct predictions of a mini-batch.
+     * @param Yhat a [minibatch_size x n_classes] matrix of scores
+     * @param Y a [minibatch_size x 1] matrix, each row is the ground-truth label of an instance
+     * @return the number of rows whose highest score is the label
+     */
+    public static int countCorrect(DoubleMatrix Yhat, DoubleMatrix Y) {
+        int n = Yhat.rows;
+        int correct = 0;
+        for (int i = 0; i < n; i++) {
+            // the first highest score, like DoubleMatrix.rowArgmaxs
+            int best = 0;
+            double bestVal = Yhat.data[i];
+            for (int j = 1; j < Yhat.columns; j++) {
+                if (Yhat.data[j * n + i] > bestVal) {
+                    bestVal = Yhat.data[j * n + i];
+                    best = j;
+                }
+            }
+            if (best == (int) Y.data[i])
+                correct++;
+        }
+        return correct;
+    }
+}
@@ -0,0 +1,137 @@
+// File: AsyncCheckpointer.java
+// AsyncCheckpointer class
+package minet.util;
+
+import minet.layer.Layer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes training checkpoints on a background thread, so that training is not stalled by disk writes.
+ * A checkpoint has a name (e.g. "best" or "last") and consists of the weights of the network
+ * (name.ck, @see {@link Checkpoint}) and optionally a serializable training state (name.state),
+ * e.g. the epoch counter, the optimizer state and the dataset state. The weights are copied
+ * (@see {@link Checkpoint#snapshot(Layer)}) before the call returns, so training can go on meanwhile.
+ * Both files record the epoch of the checkpoint, so weights and a state written by different saves
+ * are never restored together.
+ */
+public class AsyncCheckpointer {
+
+    File dir;
+    ExecutorService writer;
+
+    /**
+     * Constructor for AsyncCheckpointer.
+     * @param dir the directory of the checkpoints, created if necessary
+     */
+    public AsyncCheckpointer(String dir) throws IOException {
+        this.dir = new File(dir);
+        if (!this.dir.isDirectory() && !this.dir.mkdirs())
+            throw new IOException("cannot create checkpoint directory " + dir);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "minet-checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Get the path to the weights of a checkpoint.
+     * @param name the name of the checkpoint
+     * @return the path of name.ck
+     */
+    public String modelPath(String name) {
+        return new File(dir, name + ".ck").getPath();
+    }
+
+    /**
+     * Check whether a checkpoint exists.
+     * @param name the name of the checkpoint
+     * @param withState true if its training state is also required
+     * @return true if it can be restored
+     */
+    public boolean exists(String name, boolean withState) {
+        return new File(modelPath(name)).isFile() && (!withState || stateFile(name).isFile());
+    }
+
+    /**
+     * Write a checkpoint in the background. The weights are written before the state, each to a temporary
+     * file renamed into place, so a checkpoint is never read half-written.
+     * @param name the name of the checkpoint
+     * @param epoch the epoch of the checkpoint, recorded in both files
+     * @param weights a snapshot of the weights of the network
+     * @param state the training state (already copied), or null
+     */
+    public void save(String name, int epoch, Checkpoint.Snapshot weights, Serializable state) {
+        weights.setTag(epoch);
+        writer.submit(() -> {
+            try {
+                weights.write(modelPath(name));
+                if (state != null) {
+                    File tmp = new File(dir, name + ".state.tmp");
+                    try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tmp))) {
+                        out.writeInt(epoch);
+                        out.writeObject(state);
+                    }
+                    Files.move(tmp.toPath(), stateFile(name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                System.err.println("failed to write checkpoint " + name + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Restore the weights of a checkpoint into a network (@see {@link Checkpoint#restore(Layer, String)})
+     * and read its training state.
+     * @param name the name of the checkpoint
+     * @param net the network
+     * @return the training state, or null if the checkpoint has none
+     * @throws IOException if the weights and the state were written by different saves (e.g. the training
+     *                     stopped between the two renames)
+     */
+    public Serializable restore(String name, Layer net) throws IOException {
+        if (!stateFile(name).isFile()) {
+            Checkpoint.restore(net, modelPath(name));
+            return null;
+        }
+        Serializable state;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(stateFile(name)))) {
+            int epoch = in.readInt();
+            if (epoch != Checkpoint.readTag(modelPath(name)))
+                throw new IOException("the weights and the state of checkpoint " + name + " are from different epochs");
+            state = (Serializable) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("not a valid checkpoint state: " + stateFile(name), e);
+        }
+        Checkpoint.restore(net, modelPath(name));
+        return state;
+    }
+
+    /**
+     * Wait for the pending checkpoints to be written and stop the background thread.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private File stateFile(String name) {
+        return new File(dir, name + ".state");
+    }
+}
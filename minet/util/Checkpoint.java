@@ -0,0 +1,408 @@
+// File: Checkpoint.java
+// Checkpoint class
+package minet.util;
+
+import minet.layer.*;
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary (little-endian) model checkpoint: the architecture of a network and its weights only,
+ * without the values cached for backward that Java serialization would also write.
+ * Layout: [magic, version, architecture length, tag] [architecture: one text line per layer, depth-first]
+ * [padding to 8 bytes] [the weights of the layers in the same order, each a contiguous array of
+ * doubles (or floats for single-precision tables) in the order of DoubleMatrix.data].
+ * The tag is a number chosen by the writer, e.g. the epoch of the weights (@see {@link Snapshot#setTag(int)}).
+ * The minet layers are described here; layers defined elsewhere register a {@link Codec} for their class,
+ * and their lines start with the name of the class. The arrays are written and read through a small
+ * buffer, so the size of a checkpoint is not limited by the size of a single buffer.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x4D4E4331;  // "MNC1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private static final Map<String, Codec> codecs = new ConcurrentHashMap<String, Codec>();
+
+    private Checkpoint() { }
+
+    /**
+     * Writes and reads the layers of a class which is not part of minet.
+     */
+    public interface Codec {
+        /**
+         * Describe a layer.
+         * @param layer the layer
+         * @param arrays the list to which the weights of the layer are added (double[] or float[])
+         * @return the description of the layer, on a single line (without the class name)
+         */
+        String describe(Layer layer, List<Object> arrays);
+
+        /**
+         * Build a layer from its description.
+         * @param description the description returned by {@link #describe(Layer, List)}
+         * @param in the weights of the layer, in the order they were added by {@link #describe(Layer, List)}
+         * @return the layer
+         */
+        Layer read(String description, Input in) throws IOException;
+    }
+
+    /**
+     * The weights of the layers of a checkpoint being loaded.
+     */
+    public interface Input {
+        /**
+         * Read the next array as a double-precision matrix.
+         * @param rows the number of rows
+         * @param columns the number of columns
+         * @return the matrix
+         */
+        DoubleMatrix readDouble(int rows, int columns) throws IOException;
+
+        /**
+         * Read the next array as a single-precision matrix.
+         * @param rows the number of rows
+         * @param columns the number of columns
+         * @return the matrix
+         */
+        FloatMatrix readFloat(int rows, int columns) throws IOException;
+    }
+
+    /**
+     * Register the codec of a layer class, usually from a static initializer of the class: when a
+     * checkpoint refers to a class without a codec, the class is loaded, which runs its initializer.
+     * @param type the layer class
+     * @param codec the codec
+     */
+    public static void register(Class<? extends Layer> type, Codec codec) {
+        codecs.put(type.getName(), codec);
+    }
+
+    /**
+     * Save a network. The file is written next to its destination and then renamed, so an existing
+     * checkpoint is never left half-written.
+     * @param net the network (a Sequential of minet layers and layers with a registered codec)
+     * @param path path to the checkpoint file
+     */
+    public static void save(Layer net, String path) throws IOException {
+        new Snapshot(net, false).write(path);
+    }
+
+    /**
+     * Take a copy of the weights of a network, e.g. to write it on another thread while training
+     * continues, or to restore the best weights found so far.
+     * @param net the network
+     * @return the snapshot
+     */
+    public static Snapshot snapshot(Layer net) {
+        return new Snapshot(net, true);
+    }
+
+    /**
+     * Copy the weights saved by {@link #save(Layer, String)} into an existing network with the same
+     * architecture. The weight matrices are updated in place, so optimizers of the network stay valid.
+     * @param net the network
+     * @param path path to the checkpoint file
+     */
+    public static void restore(Layer net, String path) throws IOException {
+        new Snapshot(load(path), false).restoreInto(net);
+    }
+
+    /**
+     * The architecture and the weights of a network.
+     */
+    public static class Snapshot {
+        String architecture;
+        List<Object> arrays = new ArrayList<Object>();  // double[] or float[]
+        int tag;
+
+        Snapshot(Layer net, boolean copy) {
+            StringBuilder str = new StringBuilder();
+            describe(net, str, arrays);
+            this.architecture = str.toString();
+            if (copy) {
+                for (int i = 0; i < arrays.size(); i++) {
+                    Object array = arrays.get(i);
+                    arrays.set(i, array instanceof double[] ? ((double[]) array).clone() : ((float[]) array).clone());
+                }
+            }
+        }
+
+        /**
+         * Set the tag written with the snapshot (0 by default), @see {@link Checkpoint#readTag(String)}.
+         * @param tag the tag, e.g. the epoch of the weights
+         * @return this snapshot
+         */
+        public Snapshot setTag(int tag) {
+            this.tag = tag;
+            return this;
+        }
+
+        /**
+         * Write the snapshot to a checkpoint file (@see {@link Checkpoint#save(Layer, String)}).
+         * @param path path to the checkpoint file
+         */
+        public void write(String path) throws IOException {
+            byte[] header = architecture.getBytes(StandardCharsets.UTF_8);
+            long dataStart = align(HEADER_BYTES + header.length);
+            long size = dataStart;
+            for (Object array : arrays) {
+                size += array instanceof double[] ? 8L * ((double[]) array).length : 4L * ((float[]) array).length;
+            }
+
+            File target = new File(path);
+            File tmp = new File(target.getPath() + ".tmp");
+            try (RandomAccessFile file = new RandomAccessFile(tmp, "rw"); FileChannel channel = file.getChannel()) {
+                file.setLength(0);
+                ByteBuffer start = ByteBuffer.allocate((int) dataStart).order(ByteOrder.LITTLE_ENDIAN);
+                start.putInt(MAGIC).putInt(VERSION).putInt(header.length).putInt(tag);
+                start.put(header);
+                start.rewind();
+                writeFully(channel, start);
+
+                ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                for (Object array : arrays) {
+                    if (array instanceof double[]) {
+                        double[] values = (double[]) array;
+                        for (int off = 0; off < values.length; ) {
+                            int n = Math.min(values.length - off, CHUNK_BYTES / 8);
+                            buf.clear();
+                            buf.asDoubleBuffer().put(values, off, n);
+                            buf.limit(8 * n);
+                            writeFully(channel, buf);
+                            off += n;
+                        }
+                    } else {
+                        float[] values = (float[]) array;
+                        for (int off = 0; off < values.length; ) {
+                            int n = Math.min(values.length - off, CHUNK_BYTES / 4);
+                            buf.clear();
+                            buf.asFloatBuffer().put(values, off, n);
+                            buf.limit(4 * n);
+                            writeFully(channel, buf);
+                            off += n;
+                        }
+                    }
+                }
+                if (channel.position() != size)
+                    throw new IOException("model checkpoint size mismatch: " + path);
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Copy the weights of the snapshot into a network with the same architecture, in place.
+         * @param net the network
+         */
+        public void restoreInto(Layer net) {
+            Snapshot target = new Snapshot(net, false);
+            if (!target.architecture.equals(architecture))
+                throw new IllegalArgumentException("the checkpoint does not match the architecture of the network");
+            for (int i = 0; i < arrays.size(); i++) {
+                Object array = arrays.get(i);
+                if (array instanceof double[]) {
+                    System.arraycopy(array, 0, target.arrays.get(i), 0, ((double[]) array).length);
+                } else {
+                    System.arraycopy(array, 0, target.arrays.get(i), 0, ((float[]) array).length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a network saved by {@link #save(Layer, String)}.
+     * @param path path to the checkpoint file
+     * @return the network, in training mode
+     */
+    public static Layer load(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            int headerLength = readStart(channel, path).getInt(8);
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            readFully(channel, header);
+            channel.position(align(HEADER_BYTES + headerLength));
+
+            Reader reader = new Reader(new String(header.array(), StandardCharsets.UTF_8).split("\n"), channel);
+            Layer net = reader.next();
+            if (reader.line != reader.lines.length || channel.position() != channel.size())
+                throw new IOException("not a valid model checkpoint: " + path);
+            return net;
+        }
+    }
+
+    /**
+     * Read the tag of a checkpoint file, without loading its weights.
+     * @param path path to the checkpoint file
+     * @return the tag, @see {@link Snapshot#setTag(int)}
+     */
+    public static int readTag(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            return readStart(channel, path).getInt(12);
+        }
+    }
+
+    /**
+     * Read and check the fixed-size start of a checkpoint file.
+     */
+    private static ByteBuffer readStart(FileChannel channel, String path) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.size() < HEADER_BYTES)
+            throw new IOException("not a valid model checkpoint: " + path);
+        readFully(channel, start);
+        int version = start.getInt(0) == MAGIC ? start.getInt(4) : -1;
+        int headerLength = start.getInt(8);
+        if (version != VERSION || headerLength < 0 || HEADER_BYTES + (long) headerLength > channel.size())
+            throw new IOException("not a valid model checkpoint: " + path);
+        return start;
+    }
+
+    private static long align(long pos) {
+        return (pos + 7) & ~7L;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Fill the buffer (up to its limit) from the channel, then flip it for reading.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0)
+                throw new IOException("truncated model checkpoint");
+        }
+        buf.flip();
+    }
+
+    private static void describe(Layer layer, StringBuilder architecture, List<Object> arrays) {
+        if (layer instanceof Sequential) {
+            Layer[] layers = ((Sequential) layer).getLayers();
+            architecture.append("Sequential ").append(layers.length).append('\n');
+            for (Layer child : layers) {
+                describe(child, architecture, arrays);
+            }
+        } else if (layer instanceof Linear) {
+            List<DoubleMatrix> weights = layer.getAllWeights(new ArrayList<DoubleMatrix>());
+            DoubleMatrix W = weights.get(0), b = weights.get(1);
+            architecture.append(String.format("Linear %d %d %s\n", W.rows, W.columns, ((Linear) layer).getPrecision()));
+            arrays.add(W.data);
+            arrays.add(b.data);
+        } else if (layer instanceof ReLU) {
+            architecture.append("ReLU ").append(((ReLU) layer).isInPlace()).append('\n');
+        } else if (layer instanceof Sigmoid || layer instanceof Tanh || layer instanceof Softmax) {
+            architecture.append(layer.getClass().getSimpleName()).append('\n');
+        } else if (codecs.containsKey(layer.getClass().getName())) {
+            String description = codecs.get(layer.getClass().getName()).describe(layer, arrays);
+            architecture.append(layer.getClass().getName()).append(' ').append(description).append('\n');
+        } else {
+            throw new IllegalArgumentException("cannot checkpoint layer: " + layer);
+        }
+    }
+
+    /**
+     * Builds the layers described by the architecture lines, reading their weights from the file.
+     */
+    private static class Reader implements Input {
+        String[] lines;
+        int line;
+        FileChannel channel;
+        ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        Reader(String[] lines, FileChannel channel) {
+            this.lines = lines;
+            this.channel = channel;
+        }
+
+        Layer next() throws IOException {
+            if (line == lines.length)
+                throw new IOException("truncated model checkpoint architecture");
+            String[] tokens = lines[line++].split(" ", 5);
+            switch (tokens[0]) {
+                case "Sequential": {
+                    Layer[] layers = new Layer[Integer.parseInt(tokens[1])];
+                    for (int i = 0; i < layers.length; i++) {
+                        layers[i] = next();
+                    }
+                    return new Sequential(layers);
+                }
+                case "Linear": {
+                    DoubleMatrix W = readDouble(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
+                    DoubleMatrix b = readDouble(W.columns, 1);
+                    Linear linear = new Linear(W, b);
+                    linear.setPrecision(Precision.valueOf(tokens[3]));
+                    return linear;
+                }
+                case "ReLU":
+                    return new ReLU(Boolean.parseBoolean(tokens[1]));
+                case "Sigmoid":
+                    return new Sigmoid();
+                case "Tanh":
+                    return new Tanh();
+                case "Softmax":
+                    return new Softmax();
+                default:
+                    return readRegistered(tokens[0], lines[line - 1]);
+            }
+        }
+
+        Layer readRegistered(String type, String text) throws IOException {
+            if (!codecs.containsKey(type)) {
+                try {
+                    // loading the class registers its codec
+                    Class.forName(type);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("unknown layer in model checkpoint: " + type, e);
+                }
+            }
+            Codec codec = codecs.get(type);
+            if (codec == null)
+                throw new IOException("unknown layer in model checkpoint: " + type);
+            return codec.read(text.length() > type.length() ? text.substring(type.length() + 1) : "", this);
+        }
+
+        @Override
+        public DoubleMatrix readDouble(int rows, int columns) throws IOException {
+            DoubleMatrix M = new DoubleMatrix(rows, columns);
+            for (int off = 0; off < M.length; ) {
+                int n = Math.min(M.length - off, CHUNK_BYTES / 8);
+                buf.clear().limit(8 * n);
+                readFully(channel, buf);
+                buf.asDoubleBuffer().get(M.data, off, n);
+                off += n;
+            }
+            return M;
+        }
+
+        @Override
+        public FloatMatrix readFloat(int rows, int columns) throws IOException {
+            FloatMatrix M = new FloatMatrix(rows, columns);
+            for (int off = 0; off < M.length; ) {
+                int n = Math.min(M.length - off, CHUNK_BYTES / 4);
+                buf.clear().limit(4 * n);
+                readFully(channel, buf);
+                buf.asFloatBuffer().get(M.data, off, n);
+                off += n;
+            }
+            return M;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+// File: ConfusionMatrix.java
+// ConfusionMatrix class
+package minet.util;
+
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The confusion matrix of a classifier: counts[y][p] is the number of samples of class y predicted as class p,
+ * the predicted class being the row argmax of the network output (@see {@link Accuracy}).
+ * Matrices computed on separate parts of a dataset are summed with {@link #add(ConfusionMatrix)}.
+ */
+public class ConfusionMatrix {
+    final int[][] counts;
+
+    /**
+     * Constructor for ConfusionMatrix.
+     * @param nClasses the number of classes
+     */
+    public ConfusionMatrix(int nClasses) {
+        this.counts = new int[nClasses][nClasses];
+    }
+
+    /**
+     * Get the number of classes.
+     * @return the number of classes
+     */
+    public int getNumClasses() {
+        return counts.length;
+    }
+
+    /**
+     * Get the number of samples of a class predicted as another.
+     * @param label the true class
+     * @param pred the predicted class
+     * @return the number of samples
+     */
+    public int get(int label, int pred) {
+        return counts[label][pred];
+    }
+
+    /**
+     * Count the predictions of a mini-batch.
+     * @param Yhat a [minibatch_size x n_classes] matrix of scores
+     * @param Y a [minibatch_size x 1] matrix, each row is the ground-truth label of an instance
+     */
+    public void add(DoubleMatrix Yhat, DoubleMatrix Y) {
+        int[] preds = Yhat.rowArgmaxs();
+        for (int i = 0; i < preds.length; i++) {
+            counts[(int) Y.data[i]][preds[i]]++;
+        }
+    }
+
+    /**
+     * Add the counts of another confusion matrix (e.g. of another part of the dataset).
+     * @param other a confusion matrix over the same classes
+     */
+    public void add(ConfusionMatrix other) {
+        for (int y = 0; y < counts.length; y++) {
+            for (int p = 0; p < counts.length; p++) {
+                counts[y][p] += other.counts[y][p];
+            }
+        }
+    }
+
+    /**
+     * Get the number of samples.
+     * @return the sum of the counts
+     */
+    public int getTotal() {
+        int total = 0;
+        for (int[] row : counts) {
+            for (int c : row) {
+                total += c;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of correct predictions.
+     * @return the sum of the diagonal
+     */
+    public int getCorrect() {
+        int correct = 0;
+        for (int y = 0; y < counts.length; y++) {
+            correct += counts[y][y];
+        }
+        return correct;
+    }
+
+    /**
+     * Get the classification accuracy.
+     * @return the accuracy (in the range of [0,1]), 0 if there is no sample
+     */
+    public double getAccuracy() {
+        int total = getTotal();
+        return total == 0 ? 0 : (double) getCorrect() / total;
+    }
+
+    /**
+     * Get the precision of a class: the fraction of its predictions which are correct.
+     * @param c the class
+     * @return the precision, 0 if the class is never predicted
+     */
+    public double getPrecision(int c) {
+        int predicted = 0;
+        for (int y = 0; y < counts.length; y++) {
+            predicted += counts[y][c];
+        }
+        return predicted == 0 ? 0 : (double) counts[c][c] / predicted;
+    }
+
+    /**
+     * Get the recall of a class: the fraction of its samples which are predicted correctly.
+     * @param c the class
+     * @return the recall, 0 if the class has no sample
+     */
+    public double getRecall(int c) {
+        int support = getSupport(c);
+        return support == 0 ? 0 : (double) counts[c][c] / support;
+    }
+
+    /**
+     * Get the number of samples of a class.
+     * @param c the class
+     * @return the number of samples
+     */
+    public int getSupport(int c) {
+        int support = 0;
+        for (int p = 0; p < counts.length; p++) {
+            support += counts[c][p];
+        }
+        return support;
+    }
+
+    /**
+     * Format the precision, recall, F1 and support of each class with samples, followed by the most
+     * frequent confusions between two classes.
+     * @param classNames the names of the classes, or null to use their indices
+     * @param nConfusions the maximum number of confusions listed
+     * @return the report
+     */
+    public String report(List<String> classNames, int nConfusions) {
+        StringBuilder str = new StringBuilder();
+        str.append(String.format("%-20s %9s %9s %9s %9s\n", "class", "precision", "recall", "f1", "support"));
+        for (int c = 0; c < counts.length; c++) {
+            int support = getSupport(c);
+            if (support == 0)
+                continue;
+            double p = getPrecision(c), r = getRecall(c);
+            double f1 = p + r == 0 ? 0 : 2 * p * r / (p + r);
+            str.append(String.format("%-20s %9.4f %9.4f %9.4f %9d\n", name(classNames, c), p, r, f1, support));
+        }
+
+        List<int[]> confusions = new ArrayList<int[]>();
+        for (int y = 0; y < counts.length; y++) {
+            for (int p = 0; p < counts.length; p++) {
+                if (y != p && counts[y][p] > 0)
+                    confusions.add(new int[]{y, p});
+            }
+        }
+        confusions.sort((a, b) -> Integer.compare(counts[b[0]][b[1]], counts[a[0]][a[1]]));
+        if (!confusions.isEmpty()) {
+            str.append("\nmost frequent confusions (true -> predicted):\n");
+            for (int k = 0; k < Math.min(nConfusions, confusions.size()); k++) {
+                int[] c = confusions.get(k);
+                str.append(String.format("%-20s -> %-20s %5d\n", name(classNames, c[0]), name(classNames, c[1]), counts[c[0]][c[1]]));
+            }
+        }
+        return str.toString();
+    }
+
+    private static String name(List<String> classNames, int c) {
+        return classNames != null && c < classNames.size() ? classNames.get(c) : String.valueOf(c);
+    }
+}
@@ -0,0 +1,148 @@
+// File: DataParallel.java
+// DataParallel class
+package minet.util;
+
+import minet.layer.Layer;
+import minet.layer.Parameters;
+import minet.layer.SparseGradient;
+import minet.loss.Loss;
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Data-parallel forward/backward of a network.
+ * A mini-batch is split into shards, each shard is processed by a replica of the network
+ * (@see {@link Layer#replicate()}) on its own thread, and the gradients of the replicas
+ * are reduced into the gradients of the network, so that a single
+ * {@link minet.optim.Optimizer#updateWeights()} can be applied afterwards.
+ */
+public class DataParallel {
+
+    Layer net;
+    Layer[] replicas;
+    Loss[] losses;
+    Parameters params;
+    List<SparseGradient> sparseGrads;
+    List<Parameters> replicaParams;
+    List<List<SparseGradient>> replicaSparseGrads;
+    ExecutorService pool;
+    int[] correct;  // the number of correct predictions of each replica in the last mini-batch
+
+    /**
+     * Constructor for DataParallel.
+     * @param net the network, whose gradients receive the reduced gradients
+     * @param lossFactory creates one loss object per replica
+     * @param nThreads the number of replicas / worker threads
+     */
+    public DataParallel(Layer net, Supplier<Loss> lossFactory, int nThreads) {
+        this.net = net;
+        this.params = new Parameters(net);
+        this.sparseGrads = net.getAllSparseGradients(new ArrayList<SparseGradient>());
+
+        this.replicas = new Layer[nThreads];
+        this.losses = new Loss[nThreads];
+        this.correct = new int[nThreads];
+        this.replicaParams = new ArrayList<Parameters>();
+        this.replicaSparseGrads = new ArrayList<List<SparseGradient>>();
+        for (int k = 0; k < nThreads; k++) {
+            replicas[k] = net.replicate();
+            losses[k] = lossFactory.get();
+            replicaParams.add(new Parameters(replicas[k]));
+            replicaSparseGrads.add(replicas[k].getAllSparseGradients(new ArrayList<SparseGradient>()));
+        }
+
+        this.pool = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "minet-data-parallel");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Get the number of replicas.
+     * @return the number of replicas
+     */
+    public int getNumReplicas() {
+        return replicas.length;
+    }
+
+    /**
+     * Compute the loss and the gradients of a mini-batch split into shards.
+     * The gradients are added to the gradients of the network (which should be reset before),
+     * weighted by the size of each shard, so they equal the gradients of the whole mini-batch.
+     * @param shards at most {@link #getNumReplicas()} pairs of (input, ground-truth)
+     * @return the loss value of the mini-batch
+     */
+    public double forwardBackward(List<Pair<Object, DoubleMatrix>> shards) {
+        int total = 0;
+        for (Pair<Object, DoubleMatrix> shard : shards) {
+            total += shard.second.rows;
+        }
+
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+        for (int k = 0; k < shards.size(); k++) {
+            final int r = k;
+            final Pair<Object, DoubleMatrix> shard = shards.get(k);
+            tasks.add(() -> {
+                replicaParams.get(r).zeroGradients();
+                for (SparseGradient g : replicaSparseGrads.get(r)) {
+                    g.reset();
+                }
+                DoubleMatrix Yhat = replicas[r].forward(shard.first);
+                correct[r] = Accuracy.countCorrect(Yhat, shard.second);
+                double lossVal = losses[r].forward(shard.second, Yhat);
+                replicas[r].backward(losses[r].backward());
+                return lossVal;
+            });
+        }
+
+        double lossVal = 0;
+        try {
+            List<Future<Double>> results = pool.invokeAll(tasks);
+            for (int k = 0; k < shards.size(); k++) {
+                lossVal += results.get(k).get() * shards.get(k).second.rows / total;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("data-parallel step failed", e);
+        }
+
+        // reduce the gradients of the replicas
+        for (int k = 0; k < shards.size(); k++) {
+            double alpha = (double) shards.get(k).second.rows / total;
+            params.addGradients(replicaParams.get(k), alpha);
+            for (int j = 0; j < sparseGrads.size(); j++) {
+                sparseGrads.get(j).addi(replicaSparseGrads.get(k).get(j), alpha);
+            }
+        }
+        return lossVal;
+    }
+
+    /**
+     * Get the number of correct predictions (@see {@link Accuracy}) of the last mini-batch, made by the
+     * forward passes of {@link #forwardBackward(List)}.
+     * @param nShards the number of shards of the last mini-batch
+     * @return the number of correct predictions
+     */
+    public int getNumCorrect(int nShards) {
+        int sum = 0;
+        for (int k = 0; k < nShards; k++) {
+            sum += correct[k];
+        }
+        return sum;
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
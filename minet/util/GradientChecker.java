@@ -7,10 +7,16 @@ import minet.layer.init.*;
 import minet.loss.CrossEntropy;
 import minet.loss.Loss;
 import minet.loss.MeanSquaredError;
+import minet.loss.SoftmaxCrossEntropy;
 
 import org.jblas.DoubleMatrix;
 import src.EmbeddingBag;
+import src.Pooling;
+import src.PretrainedEmbeddings;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -41,9 +47,17 @@ public class GradientChecker {
         /* checking that dL/dW is computed correctly */
         boolean pass = true;
         List<DoubleMatrix> weights = net.getAllWeights(new LinkedList<DoubleMatrix>());
-        ListIterator<DoubleMatrix> wIter = weights.listIterator();
-
         List<DoubleMatrix> grads = net.getAllGradients(new LinkedList<DoubleMatrix>());
+
+        // row-sparse gradients are checked against their dense equivalent
+        // (single-precision tables are skipped: eps is below float resolution)
+        for (SparseGradient sg : net.getAllSparseGradients(new LinkedList<SparseGradient>())) {
+            if (sg.getWeights() == null)
+                continue;
+            weights.add(sg.getWeights());
+            grads.add(sg.toDense());
+        }
+        ListIterator<DoubleMatrix> wIter = weights.listIterator();
         ListIterator<DoubleMatrix> gIter = grads.listIterator();
 
         while (wIter.hasNext() && gIter.hasNext()) {
@@ -95,10 +109,99 @@ public class GradientChecker {
         checkGradient(net, loss, X, Y);
     }
 
+    /**
+     * Create a classification test with the fused softmax + cross entropy loss.
+     */
+    public static void testSoftmaxCrossEntropy() {
+        DoubleMatrix X = new DoubleMatrix(
+                new double[][] {
+                        {.1f, .1f, .1f, .6f, .1f},
+                        {.5f, .1f, .2f, .1f, .1f},
+                        {.1f, .2f, .2f, .1f, .4f}});
+        DoubleMatrix Y = new DoubleMatrix(new double[] {2., 0., 1.});
+        Sequential net = new Sequential(new Layer[] {
+                new Linear(5, 10, new WeightInitUniform(-1, 1)),
+                new Tanh(),
+                new Linear(10, 6, new WeightInitUniform(-1, 1))});
+        SoftmaxCrossEntropy loss = new SoftmaxCrossEntropy();
+
+        System.out.println(net);
+        System.out.println(loss);
+        checkGradient(net, loss, X, Y);
+    }
+
+    /**
+     * Create a classification test for each pooling mode of the embedding bag, with weighted words.
+     */
+    public static void testEmbeddingBagPooling() {
+        DoubleMatrix X = new DoubleMatrix(
+                new double[][] {
+                        {2.00, 0.00, 0.00, 0.50, 1.00},
+                        {1.00, 0.00, 0.00, 1.00, 1.00},
+                        {0.00, 0.00, 0.00, 0.00, 0.00},
+                        {0.30, 1.00, 0.00, 3.00, 1.00}});
+        DoubleMatrix Y = new DoubleMatrix(new double[] {0., 1., 2., 3.});
+        for (Pooling pooling : Pooling.values()) {
+            System.out.println("Testing Backward Function - Embedding Layer, " + pooling + " pooling");
+            EmbeddingBag embeddingBag = new EmbeddingBag(5, 6, new WeightInitUniform(-1, 1));
+            embeddingBag.setPooling(pooling);
+            Sequential net = new Sequential(new Layer[] {embeddingBag});
+            checkGradient(net, new SoftmaxCrossEntropy(), X, Y);
+        }
+    }
+
+    /**
+     * Check that a frozen memory-mapped table gives the same max pooling as a heap copy of it,
+     * with weighted words (a frozen table has no gradient to check).
+     */
+    public static void testMappedEmbeddingBagPooling() {
+        System.out.println("Testing Forward Function - Embedding Layer, frozen pre-trained embeddings, MAX pooling");
+        DoubleMatrix X = new DoubleMatrix(
+                new double[][] {
+                        {2.00, 0.00, 0.00, 0.50, 1.00},
+                        {0.00, 0.00, 0.00, 0.00, 0.00},
+                        {0.30, 1.00, 0.00, 3.00, 1.00}});
+        File vocab = null;
+        try {
+            vocab = File.createTempFile("vocab", ".txt");
+            DoubleMatrix vectors = DoubleMatrix.rand(5, 6).subi(0.5);
+            try (PrintWriter out = new PrintWriter(vocab)) {
+                for (int r = 0; r < vectors.rows; r++) {
+                    StringBuilder line = new StringBuilder("w" + r);
+                    for (int d = 0; d < vectors.columns; d++) {
+                        line.append(' ').append((float) vectors.get(r, d));
+                    }
+                    out.println(line);
+                }
+            }
+            PretrainedEmbeddings embeddings = PretrainedEmbeddings.fromFile(vocab.getPath());
+            EmbeddingBag mapped = new EmbeddingBag(5, 6, embeddings, true);
+            EmbeddingBag heap = new EmbeddingBag(5, 6, embeddings, false);
+            mapped.setPooling(Pooling.MAX);
+            heap.setPooling(Pooling.MAX);
+
+            double diff = mapped.forward(X).distance2(heap.forward(X));
+            if (diff < 1e-9)
+                System.out.println("correct forward for mapped weights");
+            else
+                System.err.println("incorrect forward for mapped weights");
+        } catch (IOException e) {
+            System.err.println("cannot create pre-trained embeddings: " + e.getMessage());
+        } finally {
+            if (vocab != null) {
+                new File(vocab.getPath() + ".emb").delete();
+                vocab.delete();
+            }
+        }
+    }
+
     public static void main(String[] args) {
         System.out.println("--- Test Classification ---");
 //        testClasification();
         testClasificationForEmbedding();
+        testSoftmaxCrossEntropy();
+        testEmbeddingBagPooling();
+        testMappedEmbeddingBagPooling();
 
     }
 
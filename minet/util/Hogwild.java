@@ -0,0 +1,128 @@
+// File: Hogwild.java
+// Hogwild class
+package minet.util;
+
+import minet.layer.Layer;
+import minet.layer.Parameters;
+import minet.layer.SparseGradient;
+import minet.loss.Loss;
+import minet.optim.SGD;
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous lock-free SGD (Hogwild, see <a href="https://arxiv.org/abs/1106.5730">paper</a>).
+ * Each thread owns a replica of the network (@see {@link Layer#replicate()}), repeatedly takes a
+ * mini-batch, computes its gradients and applies them to the shared weights with
+ * {@link SGD#updateWeightsAsync(Parameters, List)}, without waiting for the other threads.
+ * This works well for sparse gradients (e.g. embedding tables), where threads rarely update the same rows.
+ */
+public class Hogwild {
+
+    Layer[] replicas;
+    Loss[] losses;
+    List<Parameters> replicaParams;
+    List<List<SparseGradient>> replicaSparseGrads;
+    SGD optimizer;
+    ExecutorService pool;
+    int[] correct;  // the number of correct predictions of each thread in the last epoch
+
+    /**
+     * Constructor for Hogwild.
+     * @param net the network, whose weights are shared by all threads
+     * @param lossFactory creates one loss object per thread
+     * @param optimizer an SGD optimizer of the network
+     * @param nThreads the number of threads
+     */
+    public Hogwild(Layer net, Supplier<Loss> lossFactory, SGD optimizer, int nThreads) {
+        this.optimizer = optimizer;
+        this.replicas = new Layer[nThreads];
+        this.losses = new Loss[nThreads];
+        this.correct = new int[nThreads];
+        this.replicaParams = new ArrayList<Parameters>();
+        this.replicaSparseGrads = new ArrayList<List<SparseGradient>>();
+        for (int k = 0; k < nThreads; k++) {
+            replicas[k] = net.replicate();
+            losses[k] = lossFactory.get();
+            replicaParams.add(new Parameters(replicas[k]));
+            replicaSparseGrads.add(replicas[k].getAllSparseGradients(new ArrayList<SparseGradient>()));
+        }
+
+        this.pool = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "minet-hogwild");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Train for one epoch: every thread takes mini-batches until nextBatch returns null.
+     * @param nextBatch returns the next pair of (input, ground-truth), or null at the end of the epoch.
+     *                  It is called concurrently, so it must be thread-safe.
+     * @return the sum of the loss values of all the mini-batches
+     */
+    public double trainEpoch(Supplier<Pair<Object, DoubleMatrix>> nextBatch) {
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+        for (int k = 0; k < replicas.length; k++) {
+            final int r = k;
+            tasks.add(() -> {
+                double totalLoss = 0;
+                correct[r] = 0;
+                while (true) {
+                    Pair<Object, DoubleMatrix> batch = nextBatch.get();
+                    if (batch == null)
+                        break;
+
+                    replicaParams.get(r).zeroGradients();
+                    for (SparseGradient g : replicaSparseGrads.get(r)) {
+                        g.reset();
+                    }
+                    DoubleMatrix Yhat = replicas[r].forward(batch.first);
+                    correct[r] += Accuracy.countCorrect(Yhat, batch.second);
+                    totalLoss += losses[r].forward(batch.second, Yhat);
+                    replicas[r].backward(losses[r].backward());
+                    optimizer.updateWeightsAsync(replicaParams.get(r), replicaSparseGrads.get(r));
+                }
+                return totalLoss;
+            });
+        }
+
+        double totalLoss = 0;
+        try {
+            for (Future<Double> result : pool.invokeAll(tasks)) {
+                totalLoss += result.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("hogwild epoch failed", e);
+        }
+        return totalLoss;
+    }
+
+    /**
+     * Get the number of correct predictions (@see {@link Accuracy}) made by the forward passes of the last
+     * epoch, each with the weights at the time of its mini-batch.
+     * @return the number of correct predictions
+     */
+    public int getNumCorrect() {
+        int sum = 0;
+        for (int c : correct) {
+            sum += c;
+        }
+        return sum;
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
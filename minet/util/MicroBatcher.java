@@ -0,0 +1,134 @@
+// File: MicroBatcher.java
+// MicroBatcher class
+package minet.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Dynamic micro-batching of prediction requests.
+ * Requests submitted from any thread are queued; a single worker thread collects them until either
+ * maxBatchSize requests are waiting or maxDelayMillis have passed since the first one arrived,
+ * processes them with one call (e.g. one forward of a network over a mini-batch) and completes
+ * the future of each request with its own result.
+ * Since only the worker thread calls process, it does not need to be thread-safe.
+ * If process fails (with any exception or error), the requests of the batch are failed and the worker
+ * goes on with the next batch.
+ *
+ * @param <I> the type of a request
+ * @param <O> the type of a result
+ */
+public class MicroBatcher<I, O> {
+
+    private static class Request<I, O> {
+        I item;
+        CompletableFuture<O> result = new CompletableFuture<O>();
+
+        Request(I item) {
+            this.item = item;
+        }
+    }
+
+    private final Function<List<I>, List<O>> process;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Request<I, O>> queue = new LinkedBlockingQueue<Request<I, O>>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for MicroBatcher.
+     * @param process computes the results of a batch of requests, in the same order
+     * @param maxBatchSize the maximum number of requests in a batch
+     * @param maxDelayMillis the maximum time the first request of a batch waits for more requests
+     */
+    public MicroBatcher(Function<List<I>, List<O>> process, int maxBatchSize, long maxDelayMillis) {
+        this.process = process;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.worker = new Thread(this::run, "minet-micro-batcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Submit a request.
+     * @param item the request
+     * @return a future completed with the result of the request once its batch is processed
+     */
+    public CompletableFuture<O> submit(I item) {
+        Request<I, O> request = new Request<I, O>(item);
+        if (!running) {
+            request.result.completeExceptionally(new IllegalStateException("micro-batcher is shut down"));
+        } else {
+            queue.add(request);
+            // the worker may have stopped, and failed the queued requests, in the meantime
+            if (!running && queue.remove(request))
+                request.result.completeExceptionally(new IllegalStateException("micro-batcher is shut down"));
+        }
+        return request.result;
+    }
+
+    /**
+     * Stop the worker thread. Requests still in the queue are failed.
+     */
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        List<Request<I, O>> batch = new ArrayList<Request<I, O>>(maxBatchSize);
+        List<I> items = new ArrayList<I>(maxBatchSize);
+        try {
+            while (running) {
+                // wait for the first request, then for more until the batch is full or the delay is over
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0)
+                        continue;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    Request<I, O> request = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (request == null)
+                        break;
+                    batch.add(request);
+                }
+
+                for (Request<I, O> request : batch) {
+                    items.add(request.item);
+                }
+                try {
+                    List<O> results = process.apply(items);
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).result.complete(results.get(i));
+                    }
+                } catch (Throwable e) {
+                    // e.g. an OutOfMemoryError on a large batch: later batches may still succeed
+                    for (Request<I, O> request : batch) {
+                        request.result.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+                items.clear();
+            }
+        } catch (InterruptedException e) {
+            // shut down
+        } finally {
+            // later submissions fail immediately, and the requests still waiting are failed here
+            running = false;
+            IllegalStateException stopped = new IllegalStateException("micro-batcher is shut down");
+            queue.drainTo(batch);
+            for (Request<I, O> request : batch) {
+                request.result.completeExceptionally(stopped);
+            }
+        }
+    }
+}
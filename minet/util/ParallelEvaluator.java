@@ -0,0 +1,148 @@
+// File: ParallelEvaluator.java
+// ParallelEvaluator class
+package minet.util;
+
+import minet.layer.Layer;
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Parallel evaluation of a classifier. The worker threads take the mini-batches of a dataset one at a time,
+ * convert them and run inference-mode forward passes on their own replica of the network
+ * (@see {@link Layer#replicate()}), which shares the (read-only) weights; the confusion matrices of the
+ * threads are then summed. The result does not depend on the number of threads.
+ * The replicas of a network are created on its first evaluation and reused by the next ones, as long as
+ * the network is in use; a network must not be evaluated by two calls at the same time.
+ */
+public class ParallelEvaluator {
+
+    int nThreads;
+    ExecutorService pool;  // null with a single thread
+    // the inference replicas of each network evaluated so far (replicas share the weights, not the network itself)
+    Map<Layer, List<Layer>> replicas = Collections.synchronizedMap(new WeakHashMap<Layer, List<Layer>>());
+
+    /**
+     * Constructor for ParallelEvaluator.
+     * @param nThreads the number of worker threads, 1 to evaluate on the calling thread
+     */
+    public ParallelEvaluator(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+        if (this.nThreads > 1) {
+            this.pool = Executors.newFixedThreadPool(this.nThreads, r -> {
+                Thread t = new Thread(r, "minet-eval");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Get the number of worker threads.
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Evaluate a network on mini-batches. The weights must not change during the evaluation.
+     * @param net the network
+     * @param batches the mini-batches of the dataset, e.g. {@link minet.data.Dataset#batches()}
+     * @param converter converts a mini-batch to a pair of (input, ground-truth), on the worker threads
+     * @return the confusion matrix of the predictions (over the outputs of the network)
+     */
+    public <T> ConfusionMatrix evaluate(Layer net, Iterator<T> batches, Function<T, ? extends Pair<?, DoubleMatrix>> converter) {
+        if (pool == null) {
+            // inference mode: forward does not keep anything for backward
+            net.setTraining(false);
+            try {
+                return evaluateOn(net, batches, converter);
+            } finally {
+                net.setTraining(true);
+            }
+        }
+
+        List<Callable<ConfusionMatrix>> tasks = new ArrayList<Callable<ConfusionMatrix>>();
+        for (Layer replica : replicasOf(net)) {
+            // the weights may have changed since the last evaluation (e.g. layers caching a copy refresh it)
+            replica.setTraining(false);
+            tasks.add(() -> evaluateOn(replica, batches, converter));
+        }
+
+        ConfusionMatrix total = new ConfusionMatrix(0);
+        try {
+            for (Future<ConfusionMatrix> result : pool.invokeAll(tasks)) {
+                ConfusionMatrix matrix = result.get();
+                // a thread which got no mini-batch has an empty matrix
+                if (matrix.getNumClasses() == 0)
+                    continue;
+                if (total.getNumClasses() == 0) {
+                    total = matrix;
+                } else {
+                    total.add(matrix);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("parallel evaluation failed", e);
+        }
+        return total;
+    }
+
+    /**
+     * Get the inference replicas of a network, creating them on its first evaluation.
+     */
+    private List<Layer> replicasOf(Layer net) {
+        return replicas.computeIfAbsent(net, n -> {
+            List<Layer> list = new ArrayList<Layer>();
+            for (int k = 0; k < nThreads; k++) {
+                Layer replica = n.replicate();
+                replica.setTraining(false);
+                list.add(replica);
+            }
+            return list;
+        });
+    }
+
+    /**
+     * Evaluate the mini-batches taken from a shared iterator on one network (or replica).
+     */
+    private static <T> ConfusionMatrix evaluateOn(Layer net, Iterator<T> batches, Function<T, ? extends Pair<?, DoubleMatrix>> converter) {
+        ConfusionMatrix matrix = new ConfusionMatrix(0);
+        while (true) {
+            T items;
+            synchronized (batches) {
+                if (!batches.hasNext())
+                    break;
+                items = batches.next();
+            }
+            Pair<?, DoubleMatrix> batch = converter.apply(items);
+            DoubleMatrix Yhat = net.forward(batch.first);
+            // the number of classes is known from the first output
+            if (matrix.getNumClasses() == 0)
+                matrix = new ConfusionMatrix(Yhat.columns);
+            matrix.add(Yhat, batch.second);
+        }
+        return matrix;
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdown();
+        replicas.clear();
+    }
+}
@@ -3,10 +3,16 @@ package src;
 import minet.example.mnist.MNISTDataset;
 import minet.layer.*;
 import minet.layer.init.WeightInitXavier;
-import minet.loss.CrossEntropy;
+import minet.loss.SoftmaxCrossEntropy;
 import minet.loss.Loss;
+import minet.optim.AdaGrad;
+import minet.optim.Adam;
+import minet.optim.GradientClipping;
+import minet.optim.LRScheduler;
+import minet.optim.Momentum;
 import minet.optim.Optimizer;
 import minet.optim.SGD;
+import minet.util.Checkpoint;
 import minet.util.GradientChecker;
 import minet.util.Pair;
 import org.jblas.DoubleMatrix;
@@ -14,6 +20,7 @@ import org.jblas.util.Logger;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -27,6 +34,9 @@ public class A4Main {
     private static List<Integer> maxEpochsToTry = new ArrayList<>();
     private static List<Integer> patienceToTry = new ArrayList<>();
     private static int iterations = 1;
+    // successive halving: epochs of the first rung and the reduction factor between rungs.
+    private static int halvingMinEpochs = 5;
+    private static int halvingEta = 3;
 
     /**
      * Example A4Main class. Feel free to edit this file
@@ -34,7 +44,7 @@ public class A4Main {
     public static void main(String[] args) throws IOException {
 
         if (args.length < 6) {
-            System.out.println("Usage: java A4Main <part1/part2/part3/part4/part5> <seed> <trainFile> <devFile> <testFile> <vocabFile> <classesFile>");
+            System.out.println("Usage: java A4Main <part1/part2/part3/part4/part5> <seed> <trainFile> <devFile> <testFile> <vocabFile> <classesFile> [silent/verbose] [tune] [threads=<N>] [hogwild] [workers=<N>] [halving] [cache] [float32] [save=<modelFile>] [checkpoint=<dir>] [every=<K>] [resume] [prefetch=<K>] [stream[=<shardMB>]] [buffer=<N>] [pool=<sum/mean/max>] [weights=<binary/count/tfidf>] [optim=<sgd/momentum/adagrad/adam>] [lr=<rate>] [schedule=<step/cosine/plateau>] [warmup=<steps>] [clip=<norm>] [evalevery=<K>] [evalthreads=<N>]");
             return;
         }
 
@@ -75,15 +85,50 @@ public class A4Main {
         int maxEpochs = 500;
         int patience = 10;
 
+        // Parse each data file once and memory-map its binary cache on later runs.
+        boolean binaryCache = false;
+        // Stream the data from disk in shards of <shardMB> MB instead of loading it, given as stream[=<shardMB>],
+        // shuffling the training samples with a buffer of <N> samples, given as buffer=<N>.
+        long shardBytes = 0;
+        int shuffleBuffer = 10000;
+        // Weight the words of a question by their count or by TF-IDF, given as weights=<count/tfidf>.
+        String wordWeighting = "binary";
+        for (int i = 7; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("cache")) {
+                binaryCache = true;
+            }
+            if (args[i].equalsIgnoreCase("stream")) {
+                shardBytes = 64L << 20;
+            }
+            if (args[i].startsWith("stream=")) {
+                shardBytes = (long) (Double.parseDouble(args[i].substring("stream=".length())) * (1 << 20));
+            }
+            if (args[i].startsWith("buffer=")) {
+                shuffleBuffer = Integer.parseInt(args[i].substring("buffer=".length()));
+            }
+            if (args[i].startsWith("weights=")) {
+                wordWeighting = args[i].substring("weights=".length()).toLowerCase();
+            }
+        }
+
         // load datasets
         System.out.println("\nLoading data...");
         VocabDataset trainset = new VocabDataset(batchsize, true, rnd, args[5], useTrainedWeights);
+        trainset.setBinaryCache(binaryCache);
+        trainset.setStreaming(shardBytes, shuffleBuffer);
+        trainset.setWordCounts(!wordWeighting.equals("binary"));
         trainset.fromFile(args[2]);
 
         VocabDataset devset = new VocabDataset(batchsize, false, rnd, args[5], false);
+        devset.setBinaryCache(binaryCache);
+        devset.setStreaming(shardBytes, shuffleBuffer);
+        devset.setWordCounts(!wordWeighting.equals("binary"));
         devset.fromFile(args[3]);
 
         VocabDataset testset = new VocabDataset(batchsize, false, rnd, args[5], false);
+        testset.setBinaryCache(binaryCache);
+        testset.setStreaming(shardBytes, shuffleBuffer);
+        testset.setWordCounts(!wordWeighting.equals("binary"));
         testset.fromFile(args[4]);
 
         System.out.printf("train: %d instances\n", trainset.getSize());
@@ -94,11 +139,29 @@ public class A4Main {
         System.out.println("\nCreating network...");
         int indims = trainset.getInputDims();
         int outdims = 50;
-        Sequential net;
-        DoubleMatrix pretrainedWeights = trainset.getPretrainedWeights();
+        Sequential net = null;
+        PretrainedEmbeddings pretrainedEmbeddings = trainset.getPretrainedEmbeddings();
 
         boolean verbose = true;
         boolean tune = false;
+        int threads = 1;
+        boolean async = false;
+        int workers = 1;
+        boolean halving = false;
+        Precision precision = Precision.DOUBLE;
+        Pooling pooling = Pooling.SUM;
+        String optim = "sgd";
+        Double lr = null;
+        String schedule = null;
+        int warmup = 0;
+        double clipNorm = 0;
+        String modelPath = null;
+        String checkpointDir = null;
+        int checkpointEvery = 10;
+        boolean resume = false;
+        int prefetch = 2;
+        int evalEvery = 1;
+        int evalThreads = 1;
         if (args.length >= 8) {
             // Silent mode - not printing each step
             if (args[7].equalsIgnoreCase("silent")) {
@@ -109,36 +172,159 @@ public class A4Main {
             if (args.length >= 9 && args[8].equalsIgnoreCase("tune")) {
                 tune = true;
             }
+
+            // Number of threads for data-parallel training, given as threads=<N>.
+            for (int i = 7; i < args.length; i++) {
+                if (args[i].startsWith("threads=")) {
+                    threads = Integer.parseInt(args[i].substring("threads=".length()));
+                }
+                // Asynchronous lock-free training (Hogwild) instead of synchronous data-parallel training.
+                if (args[i].equalsIgnoreCase("hogwild")) {
+                    async = true;
+                }
+                // Number of hyperparameter trials trained concurrently, given as workers=<N>.
+                if (args[i].startsWith("workers=")) {
+                    workers = Integer.parseInt(args[i].substring("workers=".length()));
+                }
+                // Tune with successive halving instead of a plain randomized search.
+                if (args[i].equalsIgnoreCase("halving")) {
+                    halving = true;
+                }
+                // Single-precision embedding tables and float BLAS in the linear layers.
+                if (args[i].equalsIgnoreCase("float32")) {
+                    precision = Precision.FLOAT;
+                }
+                // How the embedding bag combines the words of a question, given as pool=<sum/mean/max>.
+                if (args[i].startsWith("pool=")) {
+                    pooling = Pooling.valueOf(args[i].substring("pool=".length()).toUpperCase());
+                }
+                // The optimizer, given as optim=<sgd/momentum/adagrad/adam>, and its learning rate, given as lr=<rate>.
+                if (args[i].startsWith("optim=")) {
+                    optim = args[i].substring("optim=".length()).toLowerCase();
+                }
+                if (args[i].startsWith("lr=")) {
+                    lr = Double.parseDouble(args[i].substring("lr=".length()));
+                }
+                // Decay the learning rate, given as schedule=<step/cosine/plateau>, after a linear warmup over
+                // the first updates, given as warmup=<steps>, and clip the gradients by their global norm,
+                // given as clip=<norm>.
+                if (args[i].startsWith("schedule=")) {
+                    schedule = args[i].substring("schedule=".length()).toLowerCase();
+                }
+                if (args[i].startsWith("warmup=")) {
+                    warmup = Integer.parseInt(args[i].substring("warmup=".length()));
+                }
+                if (args[i].startsWith("clip=")) {
+                    clipNorm = Double.parseDouble(args[i].substring("clip=".length()));
+                }
+                // Save the trained network, e.g. to serve it with QuestionServer, given as save=<modelFile>.
+                if (args[i].startsWith("save=")) {
+                    modelPath = args[i].substring("save=".length());
+                }
+                // Checkpoint the best and the latest weights to a directory, given as checkpoint=<dir>,
+                // the latest every <K> epochs, given as every=<K>.
+                if (args[i].startsWith("checkpoint=")) {
+                    checkpointDir = args[i].substring("checkpoint=".length());
+                }
+                if (args[i].startsWith("every=")) {
+                    checkpointEvery = Integer.parseInt(args[i].substring("every=".length()));
+                }
+                // Resume training from the latest checkpoint.
+                if (args[i].equalsIgnoreCase("resume")) {
+                    resume = true;
+                }
+                // Number of training mini-batches prepared ahead on a producer thread, given as prefetch=<K>
+                // (0 prepares them on the training thread).
+                if (args[i].startsWith("prefetch=")) {
+                    prefetch = Integer.parseInt(args[i].substring("prefetch=".length()));
+                }
+                // Evaluate the dev set every <K> epochs only, given as evalevery=<K>.
+                if (args[i].startsWith("evalevery=")) {
+                    evalEvery = Integer.parseInt(args[i].substring("evalevery=".length()));
+                }
+                // Number of threads evaluating the datasets, given as evalthreads=<N> (1 by default).
+                if (args[i].startsWith("evalthreads=")) {
+                    evalThreads = Integer.parseInt(args[i].substring("evalthreads=".length()));
+                }
+            }
         }
 
 
+        // Hogwild workers apply plain SGD steps to the shared weights: only the epoch-level learning rate
+        // schedules (updated at the end of each epoch) apply to them, not the per-step clipping and warmup.
+        if (async && threads > 1 && (!optim.equals("sgd") || clipNorm > 0 || warmup > 0)) {
+            System.out.println("hogwild only supports optim=sgd with schedule=<step/cosine/plateau>, not clip=<norm> or warmup=<steps>");
+            return;
+        }
+
         // Arraylists containing values to try in Hyperparameter tuning.
         if (tune) {
             getScannerInputValues();
         }
 
-        VocabClassifier vocabClassifier = new VocabClassifier(verbose);
+        // every part except part1 starts with an EmbeddingBag, which consumes sparse word-index batches.
+        VocabClassifier vocabClassifier = new VocabClassifier(verbose, !args[0].equalsIgnoreCase("part1"));
+        vocabClassifier.setNumThreads(threads);
+        vocabClassifier.setAsync(async);
+        vocabClassifier.setPrefetch(prefetch);
+        vocabClassifier.setEvalEvery(evalEvery);
+        vocabClassifier.setEvalThreads(evalThreads);
+        if (args.length > 6) {
+            // report the performance of each class on the test set.
+            vocabClassifier.setClassNames(QuestionServer.readClasses(args[6]));
+        }
+        // the default learning rate suits each optimizer.
+        BiFunction<Layer, Double, Optimizer> optimizerFactory;
+        switch (optim) {
+            case "momentum":
+                optimizerFactory = (n, rate) -> new Momentum(n, rate, 0.9);
+                learningRate = 0.01;
+                break;
+            case "adagrad":
+                optimizerFactory = AdaGrad::new;
+                learningRate = 0.05;
+                break;
+            case "adam":
+                optimizerFactory = Adam::new;
+                learningRate = 0.001;
+                break;
+            default:
+                optimizerFactory = SGD::new;
+        }
+        if (lr != null) {
+            learningRate = lr;
+        }
+        vocabClassifier.setOptimizer(wrapOptimizer(optimizerFactory, clipNorm, schedule, warmup, maxEpochs, async && threads > 1));
+        double[] idf = null;
+        if (wordWeighting.equals("tfidf")) {
+            // the idf of the words is estimated on the training set.
+            idf = trainset.computeIdf();
+            vocabClassifier.setWordWeights(idf);
+        }
+        if (checkpointDir != null && !tune) {
+            vocabClassifier.setCheckpointing(checkpointDir, checkpointEvery, resume);
+        }
 
-        CrossEntropy loss = new CrossEntropy();
+        SoftmaxCrossEntropy loss = new SoftmaxCrossEntropy();
         switch (args[0]) {
             case "part1":
                 // perform hyperparameter tuning if tune flag is true.
                 if (tune) {
-                    performHyperparameterTuning(true, trainset, devset, indims, hiddimsEmbedding, hiddimsOthers, outdims, vocabClassifier, learningRatesToTry, maxEpochsToTry, patienceToTry, iterations);
+                    performHyperparameterTuning(true, trainset, devset, indims, hiddimsEmbedding, hiddimsOthers, outdims, vocabClassifier, learningRatesToTry, maxEpochsToTry, patienceToTry, iterations, seed, workers, halving, precision, pooling);
                 } else {
                     net = new Sequential(new Layer[]{
                             // Input to first hidden layer.
                             new Linear(indims, hiddimsEmbedding, new WeightInitXavier()),
-                            new ReLU(),
+                            new ReLU(true),
                             // first to second hidden layer.
                             new Linear(hiddimsEmbedding, hiddimsOthers, new WeightInitXavier()),
-                            new ReLU(),
+                            new ReLU(true),
                             // second to third hidden layer.
                             new Linear(hiddimsOthers, hiddimsOthers, new WeightInitXavier()),
-                            new ReLU(),
+                            new ReLU(true),
                             // third hidden layer to output.
-                            new Linear(hiddimsOthers, outdims, new WeightInitXavier()),
-                            new Softmax()});
+                            new Linear(hiddimsOthers, outdims, new WeightInitXavier())});
+                    net.setPrecision(precision);
 
                     vocabClassifier.trainAndEval(net, trainset, devset, testset, learningRate, maxEpochs, patience);
                 }
@@ -147,22 +333,22 @@ public class A4Main {
             case "part2":
                 // perform hyperparameter tuning if tune flag is true.
                 if (tune) {
-                    performHyperparameterTuning(false, trainset, devset, indims, hiddimsEmbedding, hiddimsOthers, outdims, vocabClassifier, learningRatesToTry, maxEpochsToTry, patienceToTry, iterations);
+                    performHyperparameterTuning(false, trainset, devset, indims, hiddimsEmbedding, hiddimsOthers, outdims, vocabClassifier, learningRatesToTry, maxEpochsToTry, patienceToTry, iterations, seed, workers, halving, precision, pooling);
                 } else {
                     net = new Sequential(new Layer[]{
                             // Input to first hidden layer (Embedding bag).
                             new EmbeddingBag(indims, hiddimsEmbedding, new WeightInitXavier()),
-                            new ReLU(),
+                            new ReLU(true),
                             // first to second hidden layer.
                             new Linear(hiddimsEmbedding, hiddimsOthers, new WeightInitXavier()),
-                            new ReLU(),
+                            new ReLU(true),
                             // second to third hidden layer.
                             new Linear(hiddimsOthers, hiddimsOthers, new WeightInitXavier()),
-                            new ReLU(),
+                            new ReLU(true),
                             // third hidden layer to output.
-                            new Linear(hiddimsOthers, outdims, new WeightInitXavier()),
-                            new Softmax()});
-
+                            new Linear(hiddimsOthers, outdims, new WeightInitXavier())});
+                    net.setPrecision(precision);
+                    ((EmbeddingBag) net.getLayers()[0]).setPooling(pooling);
 
                     vocabClassifier.trainAndEval(net, trainset, devset, testset, learningRate, maxEpochs, patience);
                 }
@@ -173,22 +359,23 @@ public class A4Main {
             case "part5":
                 // perform hyperparameter tuning if tune flag is true.
                 if (tune) {
-                    performHyperparameterTuning(false, trainset, devset, indims, hiddimsEmbedding, hiddimsOthers, outdims, vocabClassifier, learningRatesToTry, maxEpochsToTry, patienceToTry, iterations);
+                    performHyperparameterTuning(false, trainset, devset, indims, hiddimsEmbedding, hiddimsOthers, outdims, vocabClassifier, learningRatesToTry, maxEpochsToTry, patienceToTry, iterations, seed, workers, halving, precision, pooling);
                 } else {
                     net = new Sequential(new Layer[]{
                             // Input to first hidden layer (Embedding bag). Use pretrained weights.
                             // Decide whether to freeze them or not using the freeze flag.
-                            new EmbeddingBag(indims, hiddimsEmbedding, pretrainedWeights, freeze),
-                            new ReLU(),
+                            new EmbeddingBag(indims, hiddimsEmbedding, pretrainedEmbeddings, freeze),
+                            new ReLU(true),
                             // first to second hidden layer.
                             new Linear(hiddimsEmbedding, hiddimsOthers, new WeightInitXavier()),
-                            new ReLU(),
+                            new ReLU(true),
                             // second to third hidden layer.
                             new Linear(hiddimsOthers, hiddimsOthers, new WeightInitXavier()),
-                            new ReLU(),
+                            new ReLU(true),
                             // third hidden layer to output.
-                            new Linear(hiddimsOthers, outdims, new WeightInitXavier()),
-                            new Softmax()});
+                            new Linear(hiddimsOthers, outdims, new WeightInitXavier())});
+                    net.setPrecision(precision);
+                    ((EmbeddingBag) net.getLayers()[0]).setPooling(pooling);
 
                     vocabClassifier.trainAndEval(net, trainset, devset, testset, learningRate, maxEpochs, patience);
                 }
@@ -197,6 +384,58 @@ public class A4Main {
             default:
                 System.out.println("Please select part1, part2, part3, part4 or part 5.");
         }
+
+        if (modelPath != null && net != null) {
+            Checkpoint.save(net, modelPath);
+            // the server weights the words of the questions like the training data
+            QuestionServer.saveInputWeighting(modelPath, wordWeighting, idf);
+            System.out.println("Model saved to " + modelPath);
+        }
+    }
+
+    /**
+     * Wrap the optimizers created by a factory with gradient clipping and a learning rate schedule.
+     * @param factory creates the optimizer of a network given a learning rate
+     * @param clipNorm the maximum global norm of the gradients, 0 for no clipping
+     * @param schedule step (halve every 10 epochs), cosine (decay to 0 over maxEpochs), plateau (halve after
+     *                 3 epochs without improvement of the dev accuracy), or null for a constant learning rate
+     * @param warmup the number of updates of the linear warmup, 0 for no warmup
+     * @param maxEpochs the maximum number of epochs
+     * @param async true for asynchronous (Hogwild) training, whose workers only apply the epoch-level schedule
+     * @return the factory of the wrapped optimizers
+     * @throws IllegalArgumentException if clipping or warmup is requested for asynchronous training
+     */
+    public static BiFunction<Layer, Double, Optimizer> wrapOptimizer(BiFunction<Layer, Double, Optimizer> factory, double clipNorm,
+                                                                     String schedule, int warmup, int maxEpochs, boolean async) {
+        if (async && (clipNorm > 0 || warmup > 0))
+            throw new IllegalArgumentException("asynchronous training does not support gradient clipping or warmup");
+        return (net, rate) -> {
+            Optimizer optimizer = factory.apply(net, rate);
+            if (clipNorm > 0) {
+                optimizer = new GradientClipping(net, optimizer, clipNorm);
+            }
+            if (schedule == null && warmup == 0) {
+                return optimizer;
+            }
+            LRScheduler scheduler;
+            switch (schedule == null ? "constant" : schedule) {
+                case "step":
+                    scheduler = new LRScheduler(optimizer, LRScheduler.stepDecay(10, 0.5));
+                    break;
+                case "cosine":
+                    scheduler = new LRScheduler(optimizer, LRScheduler.cosine(maxEpochs, 0));
+                    break;
+                case "plateau":
+                    scheduler = new LRScheduler(optimizer, LRScheduler.constant()).setReduceOnPlateau(3, 0.5, rate / 100);
+                    break;
+                case "constant":
+                    scheduler = new LRScheduler(optimizer, LRScheduler.constant());
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown learning rate schedule: " + schedule);
+            }
+            return scheduler.setWarmup(warmup);
+        };
     }
 
     /**
@@ -246,11 +485,18 @@ public class A4Main {
     }
 
     /**
-     * Perform hyperparamer tuning - Extension.
+     * Perform hyperparamer tuning - Extension. Uses successive halving if the halving flag is true,
+     * otherwise randomized search.
      */
-    public static void performHyperparameterTuning(boolean linearNetwork, VocabDataset trainset, VocabDataset devset, int indims, int hiddimsEmbedding, int hiddimsOthers, int outdims, VocabClassifier vocabClassifier, List<Double> learningRatesToTry, List<Integer> maxEpochsToTry, List<Integer> patienceToTry, int iterations) {
+    public static void performHyperparameterTuning(boolean linearNetwork, VocabDataset trainset, VocabDataset devset, int indims, int hiddimsEmbedding, int hiddimsOthers, int outdims, VocabClassifier vocabClassifier, List<Double> learningRatesToTry, List<Integer> maxEpochsToTry, List<Integer> patienceToTry, int iterations, long seed, int workers, boolean halving, Precision precision, Pooling pooling) {
         // perform hyperparameter tuning using randomized search method.
-        HyperparameterTuning hyperparameterTuning = new HyperparameterTuning(linearNetwork, indims, hiddimsEmbedding, hiddimsOthers, outdims, vocabClassifier, learningRatesToTry, maxEpochsToTry, patienceToTry);
-        hyperparameterTuning.randomizedSearch(iterations, trainset, devset);
+        HyperparameterTuning hyperparameterTuning = new HyperparameterTuning(linearNetwork, indims, hiddimsEmbedding, hiddimsOthers, outdims, vocabClassifier, learningRatesToTry, maxEpochsToTry, patienceToTry, seed, workers);
+        hyperparameterTuning.setPrecision(precision);
+        hyperparameterTuning.setPooling(pooling);
+        if (halving) {
+            hyperparameterTuning.successiveHalving(iterations, halvingMinEpochs, halvingEta, trainset, devset);
+        } else {
+            hyperparameterTuning.randomizedSearch(iterations, trainset, devset);
+        }
     }
 }
\ No newline at end of file
@@ -2,12 +2,17 @@ package src;
 
 import org.jblas.*;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
+import minet.data.SparseBatch;
 import minet.layer.init.*;
 import minet.layer.Layer;
+import minet.layer.Precision;
+import minet.layer.SparseGradient;
+import minet.layer.Workspace;
+import minet.util.Checkpoint;
 
 /**
  * A class for Embedding bag layers. Feel free to modify this class for your implementation.
@@ -15,13 +20,31 @@ import minet.layer.Layer;
 public class EmbeddingBag implements Layer, java.io.Serializable {
 
     private static final long serialVersionUID = -10445336293457309L;
-    DoubleMatrix W;  // weight matrix (for simplicity, we can ignore the bias term b)
+    // weight matrix (for simplicity, we can ignore the bias term b), stored as a [outdims x vocabSize] table:
+    // column j is the embedding of word j, so each embedding is contiguous in W.data.
+    DoubleMatrix W;
+    FloatMatrix Wf;  // single-precision table, used instead of W (then null) with Precision.FLOAT
+    PretrainedEmbeddings embeddings;  // frozen pre-trained weights, read directly from the memory-mapped file (W is then null)
     // for backward
-    List<int[]> X;  // store input X for computing backward, each element in this list is a sample (an array of word indices).
-    DoubleMatrix gW;    // gradient of W
+    SparseBatch X;  // store input X for computing backward, each row is a sample (an array of word indices).
+    SparseGradient gW;  // gradient of W, only the rows of the words seen in the batch are stored
     private int vocabSize, batchSize, outdims;
     private boolean freeze;
 
+    private Workspace workspace = Workspace.NONE;
+    private boolean training = true;  // in inference mode, forward does not keep X for backward
+    private transient double[] acc;   // [outdims] the sum of the embeddings of a sample (forward), or a row of gY (backward)
+    private transient double[] row;   // [outdims] the embedding of a word (max pooling)
+    private transient double[] scratch;  // [outdims] a raw row of the mapped table, scaled by its word weight
+    private Pooling pooling = Pooling.SUM;
+    // for backward
+    private double[] scales;  // [batchsize] 1 / (sum of the weights) of each sample (mean pooling)
+    private int[] argmax;     // [batchsize x outdims] row-major, the position in X.indices of the maximum (max pooling), -1 for an empty sample
+
+    static {
+        Checkpoint.register(EmbeddingBag.class, new CheckpointCodec());
+    }
+
     /**
      * Constructor for EmbeddingBag.
      *
@@ -32,49 +55,215 @@ public class EmbeddingBag implements Layer, java.io.Serializable {
     public EmbeddingBag(int vocabSize, int outdims, WeightInit wInit) {
         this.outdims = outdims;
         this.vocabSize = vocabSize;
-        this.W = wInit.generate(vocabSize, outdims); // initialised weight randomly.
-        this.gW = DoubleMatrix.zeros(vocabSize, outdims);
+        this.W = wInit.generate(vocabSize, outdims).transpose(); // initialised weight randomly.
+        this.gW = new SparseGradient(W, true);
+    }
+
+    /**
+     * Constructor for a layer whose table is set by the caller.
+     */
+    private EmbeddingBag(int vocabSize, int outdims, boolean freeze) {
+        this.outdims = outdims;
+        this.vocabSize = vocabSize;
+        this.freeze = freeze;
+    }
+
+    /**
+     * Create an EmbeddingBag from a table in the layout of {@link #getWeights()}, without copying it.
+     *
+     * @param vocabSize (int) vocabulary size.
+     * @param outdims   (int) output of this layer.
+     * @param table     a [outdims x vocabSize] matrix, column j is the embedding of word j.
+     * @param freeze    if true, the weights are not updated during training.
+     * @return the layer.
+     */
+    public static EmbeddingBag fromTable(int vocabSize, int outdims, DoubleMatrix table, boolean freeze) {
+        EmbeddingBag bag = new EmbeddingBag(vocabSize, outdims, freeze);
+        bag.W = table;
+        bag.gW = new SparseGradient(table, true);
+        return bag;
     }
 
+    /**
+     * Create an EmbeddingBag from a single-precision table in the layout of {@link #getFloatWeights()}, without copying it.
+     *
+     * @param vocabSize (int) vocabulary size.
+     * @param outdims   (int) output of this layer.
+     * @param table     a [outdims x vocabSize] matrix, column j is the embedding of word j.
+     * @param freeze    if true, the weights are not updated during training.
+     * @return the layer.
+     */
+    public static EmbeddingBag fromTable(int vocabSize, int outdims, FloatMatrix table, boolean freeze) {
+        EmbeddingBag bag = new EmbeddingBag(vocabSize, outdims, freeze);
+        bag.Wf = table;
+        bag.gW = new SparseGradient(table, true);
+        return bag;
+    }
 
     /**
-     * Overloaded constructor for EmbeddingBag. Used to pass in a double matrix containing pre-trained.
-     * weights.
+     * Overloaded constructor for EmbeddingBag. Used to pass in memory-mapped pre-trained weights.
+     * If they are frozen, rows are read directly from the mapped file, otherwise they are copied to
+     * the heap so they can be trained.
      *
      * @param vocabSize (int) vocabulary size.
      * @param outdims   (int) output of this layer.
-     * @param pretrainedWeights    pre-trained weights to be used by the network.
+     * @param embeddings    pre-trained weights to be used by the network.
+     * @param freeze    if true, the weights are not updated during training.
+     * @throws IllegalArgumentException if the embeddings do not have outdims dimensions or vocabSize rows.
      */
-    public EmbeddingBag(int vocabSize, int outdims, DoubleMatrix pretrainedWeights, boolean freeze) {
+    public EmbeddingBag(int vocabSize, int outdims, PretrainedEmbeddings embeddings, boolean freeze) {
+        if (embeddings.getDims() != outdims || embeddings.getRows() < vocabSize)
+            throw new IllegalArgumentException(String.format("pre-trained embeddings of %d x %d cannot be used for a vocabulary of %d words and %d dimensions",
+                    embeddings.getRows(), embeddings.getDims(), vocabSize, outdims));
         this.outdims = outdims;
         this.vocabSize = vocabSize;
-        // Assign pretrained weights.
-        this.W = pretrainedWeights;
-        this.gW = DoubleMatrix.zeros(vocabSize, outdims);
         this.freeze = freeze;
+        if (freeze) {
+            this.embeddings = embeddings;
+        } else {
+            this.W = new DoubleMatrix(outdims, vocabSize);
+            for (int r = 0; r < vocabSize; r++) {
+                embeddings.addRowTo(r, W.data, r * outdims);
+            }
+            this.gW = new SparseGradient(W, true);
+        }
+    }
+
+    /**
+     * @return the vocabulary size (the number of rows of the embedding table).
+     */
+    public int getVocabSize() {
+        return vocabSize;
+    }
+
+    /**
+     * @return the number of output dimensions.
+     */
+    public int getOutdims() {
+        return outdims;
+    }
+
+    /**
+     * @return true if the weights are not updated during training.
+     */
+    public boolean isFrozen() {
+        return freeze;
+    }
+
+    /**
+     * @return the double-precision embedding table, a [outdims x vocabSize] matrix whose column j is the
+     * embedding of word j, or null if it is stored in single precision or memory-mapped.
+     */
+    public DoubleMatrix getWeights() {
+        return W;
+    }
+
+    /**
+     * @return the single-precision embedding table (in the layout of {@link #getWeights()}), or null.
+     */
+    public FloatMatrix getFloatWeights() {
+        return Wf;
+    }
+
+    /**
+     * @return the memory-mapped pre-trained embeddings used as a frozen table, or null.
+     */
+    public PretrainedEmbeddings getPretrainedEmbeddings() {
+        return embeddings;
+    }
+
+    /**
+     * @return how the embeddings of the words of a sample are combined.
+     */
+    public Pooling getPooling() {
+        return pooling;
+    }
+
+    /**
+     * Set how the embeddings of the words of a sample are combined (@see {@link Pooling}).
+     * @param pooling the pooling mode.
+     */
+    public void setPooling(Pooling pooling) {
+        this.pooling = pooling;
+    }
 
+    @Override
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+    }
+
+    @Override
+    public void setTraining(boolean training) {
+        this.training = training;
+    }
+
+    /**
+     * Store the weights in single or double precision. Memory-mapped pre-trained weights are
+     * already stored in single precision and are not affected.
+     */
+    @Override
+    public void setPrecision(Precision precision) {
+        if (precision == Precision.FLOAT && W != null) {
+            Wf = W.toFloat();
+            W = null;
+            gW = new SparseGradient(Wf, true);
+        } else if (precision == Precision.DOUBLE && Wf != null) {
+            W = MatrixFunctions.floatToDouble(Wf);
+            Wf = null;
+            gW = new SparseGradient(W, true);
+        }
     }
 
     /**
      * Perform Forward pass of the Embedding Bag layer.
      *
-     * @param input (List<int[]>) input for forward calculation
+     * @param input (SparseBatch) word indices of each sample in the batch, with optional weights. A dense
+     *              DoubleMatrix is also accepted and converted to a SparseBatch (entries other than 1 are weights).
      * @return a [batchsize x outdims] matrix, each row is the output of a sample in the batch
      */
     @Override
     public DoubleMatrix forward(Object input) {
+        SparseBatch X = getX(input);
+        // the input is only kept for backward in training mode.
+        this.X = training ? X : null;
         // Calculate number of samples in the batch.
-        this.batchSize = ((DoubleMatrix) input).length / vocabSize;
+        this.batchSize = X.size();
 
-        DoubleMatrix Y = new DoubleMatrix(batchSize, W.getColumns()); // output of this layer
-        X = getX(input);
+        DoubleMatrix Y = workspace.get(batchSize, outdims); // output of this layer
+        if (acc == null || acc.length != outdims) {
+            acc = new double[outdims];
+            row = new double[outdims];
+            scratch = new double[outdims];
+        }
+        if (training && pooling == Pooling.MEAN && (scales == null || scales.length < batchSize))
+            scales = new double[batchSize];
+        if (training && pooling == Pooling.MAX && (argmax == null || argmax.length < batchSize * outdims))
+            argmax = new int[batchSize * outdims];
 
-        // Iterate through the samples in the batch.
+        // Iterate through the samples in the batch: gather the embeddings of the words of each sample,
+        // pool them in a contiguous accumulator and write the result to the row of the sample.
         for (int i = 0; i < batchSize; i++) {
-            // iterate through the out dimensions.
+            if (pooling == Pooling.MAX) {
+                maxEmbeddings(X, i, acc);
+            } else {
+                Arrays.fill(acc, 0);
+                double total = 0;  // the sum of the weights
+                for (int k = X.offsets[i]; k < X.offsets[i + 1]; k++) {
+                    double w = X.weight(k);
+                    addEmbedding(X.indices[k], w, acc);
+                    total += w;
+                }
+                if (pooling == Pooling.MEAN) {
+                    double scale = total != 0 ? 1 / total : 0;
+                    for (int d = 0; d < outdims; d++) {
+                        acc[d] *= scale;
+                    }
+                    if (training)
+                        scales[i] = scale;
+                }
+            }
             for (int d = 0; d < outdims; d++) {
-                double sumOfWeightsForNode = getSumOfWeights(X.get(i), d); // get sum of weights for the node.
-                Y.put(i, d, sumOfWeightsForNode);
+                Y.data[d * batchSize + i] = acc[d];
             }
         }
 
@@ -90,19 +279,35 @@ public class EmbeddingBag implements Layer, java.io.Serializable {
     public DoubleMatrix backward(DoubleMatrix gY) {
         // if the layer is not frozen, then update the gradients of the weights.
         if (!freeze) {
-            // Iterate through the out dimensions / nodes.
-            for (int d = 0; d < outdims; d++) {
-                // Iterate through the samples in the batch.
-                for (int s = 0; s < batchSize; s++) {
-                    int[] indexes = X.get(s); // get indexes of current sample.
-
-                    // update gW at the specific index and dimension - with the value calculated.
-                    for (int i = 0; i < indexes.length; i++) {
-                        // calculate value for current sample.
-                        double val = gY.get(s, d);
-                        // get the prior (before updating - summing) gradient value of the current index and the dimension.
-                        double prior = gW.get(indexes[i], d);
-                        gW.put(indexes[i], d, prior + val);
+            if (acc == null || acc.length != outdims)
+                acc = new double[outdims];
+            // Iterate through the samples in the batch.
+            for (int s = 0; s < batchSize; s++) {
+                // copy the row of gY of the current sample once.
+                double scale = pooling == Pooling.MEAN ? scales[s] : 1;
+                for (int d = 0; d < outdims; d++) {
+                    acc[d] = scale * gY.data[d * batchSize + s];
+                }
+                if (pooling == Pooling.MAX) {
+                    // only the word with the maximum of a dimension receives its gradient.
+                    for (int d = 0; d < outdims; d++) {
+                        int k = argmax[s * outdims + d];
+                        if (k >= 0) {
+                            // rowOffset may grow the buffer, so get it afterwards.
+                            int offset = gW.rowOffset(X.indices[k]);
+                            gW.getBuffer()[offset + d] += X.weight(k) * acc[d];
+                        }
+                    }
+                    continue;
+                }
+                // update gW at the rows of the words of the current sample - with the value calculated.
+                for (int k = X.offsets[s]; k < X.offsets[s + 1]; k++) {
+                    int offset = gW.rowOffset(X.indices[k]);
+                    double[] buffer = gW.getBuffer();
+                    double w = X.weight(k);
+                    // Iterate through the out dimensions / nodes.
+                    for (int d = 0; d < outdims; d++) {
+                        buffer[offset + d] += w * acc[d];
                     }
                 }
             }
@@ -116,77 +321,122 @@ public class EmbeddingBag implements Layer, java.io.Serializable {
         return null; // there is no need to compute gX as the previous layer of this one is the input layer of the network
     }
 
+    /**
+     * W has a row-sparse gradient, so it is returned by {@link #getAllSparseGradients(List)} instead.
+     */
     @Override
     public List<DoubleMatrix> getAllWeights(List<DoubleMatrix> weights) {
-        weights.add(W);
         return weights;
     }
 
     @Override
     public List<DoubleMatrix> getAllGradients(List<DoubleMatrix> grads) {
-        grads.add(gW);
         return grads;
     }
 
+    @Override
+    public List<SparseGradient> getAllSparseGradients(List<SparseGradient> grads) {
+        // a frozen table is not trained, so optimizers keep no state for it
+        if (gW != null && !freeze) {
+            grads.add(gW);
+        }
+        return grads;
+    }
+
+    @Override
+    public Layer replicate() {
+        EmbeddingBag copy;
+        if (embeddings != null) {
+            copy = new EmbeddingBag(vocabSize, outdims, embeddings, true);
+        } else if (Wf != null) {
+            copy = fromTable(vocabSize, outdims, Wf, freeze);
+        } else {
+            copy = fromTable(vocabSize, outdims, W, freeze);
+        }
+        copy.setPooling(pooling);
+        return copy;
+    }
+
     @Override
     public String toString() {
-        return String.format("Embedding: %d rows, %d dims", W.rows, W.columns);
+        if (pooling != Pooling.SUM)
+            return String.format("Embedding: %d rows, %d dims, %s pooling", vocabSize, outdims, pooling.name().toLowerCase());
+        return String.format("Embedding: %d rows, %d dims", vocabSize, outdims);
     }
 
     /**
-     * Get the X as a list of integer arrays.
+     * Get the X as a sparse batch of word indices.
      *
-     * @param input
+     * @param input a SparseBatch, or a dense one-hot DoubleMatrix (e.g. from the GradientChecker).
      * @return
      */
-    private List<int[]> getX(Object input) {
-        DoubleMatrix X = (DoubleMatrix) input;
-
-        // Find all the indexes for each sample where words occur.
-        List<int[]> xIndexes = new ArrayList<>();
-        for (int i = 0; i < batchSize; i++) {
-            xIndexes.add(getIndexesWhereOne(X.getRow(i).elementsAsList()));
+    private SparseBatch getX(Object input) {
+        if (input instanceof SparseBatch) {
+            return (SparseBatch) input;
         }
-        return xIndexes;
+        // Find all the indexes for each sample where words occur.
+        return SparseBatch.fromDense((DoubleMatrix) input);
     }
 
     /**
-     * Get all the indexes where there is a value of 1.
-     *
-     * @param list
-     * @return
+     * Add the weighted embedding of a word to an accumulator: acc[d] += w * W[idx, d].
+     * @param idx the word index
+     * @param w the weight of the word
+     * @param acc the [outdims] accumulator
      */
-    private int[] getIndexesWhereOne(List<Double> list) {
-        ArrayList<Integer> indexes = new ArrayList<>();
-
-        // get only the indexes where the value is 1.
-        for (int i = 0; i < list.size(); i++) {
-            if (list.get(i) == 1) {
-                indexes.add(i);
+    private void addEmbedding(int idx, double w, double[] acc) {
+        if (embeddings != null) {
+            if (w == 1) {
+                embeddings.addRowTo(idx, acc, 0);
+            } else {
+                // acc may be row (max pooling), so the raw row needs a buffer of its own.
+                Arrays.fill(scratch, 0);
+                embeddings.addRowTo(idx, scratch, 0);
+                for (int d = 0; d < outdims; d++) {
+                    acc[d] += w * scratch[d];
+                }
+            }
+        } else if (Wf != null) {
+            float[] table = Wf.data;
+            int offset = idx * outdims;
+            for (int d = 0; d < outdims; d++) {
+                acc[d] += w * table[offset + d];
+            }
+        } else {
+            double[] table = W.data;
+            int offset = idx * outdims;
+            for (int d = 0; d < outdims; d++) {
+                acc[d] += w * table[offset + d];
             }
         }
-        // map back to array.
-        return indexes.stream().mapToInt(i -> i).toArray();
     }
 
     /**
-     * Get the sum of the weights for the indexes in the array passed in.
-     * @param indexes
-     * @param dimensionNumber
-     * @return
+     * Max pooling of the weighted embeddings of the words of a sample, keeping the position of the maximum
+     * of each dimension for backward. An empty sample gives a zero vector.
+     * @param X the input batch
+     * @param i the sample
+     * @param acc the [outdims] result
      */
-    private double getSumOfWeights(int[] indexes, int dimensionNumber) {
-        double sumWeights = 0;
-
-        for (int i = 0; i < indexes.length; i++) {
-            sumWeights += W.get(indexes[i], dimensionNumber);
+    private void maxEmbeddings(SparseBatch X, int i, double[] acc) {
+        int start = X.offsets[i], end = X.offsets[i + 1];
+        if (start == end) {
+            Arrays.fill(acc, 0);
+            if (training)
+                Arrays.fill(argmax, i * outdims, (i + 1) * outdims, -1);
+            return;
+        }
+        for (int k = start; k < end; k++) {
+            Arrays.fill(row, 0);
+            addEmbedding(X.indices[k], X.weight(k), row);
+            for (int d = 0; d < outdims; d++) {
+                if (k == start || row[d] > acc[d]) {
+                    acc[d] = row[d];
+                    if (training)
+                        argmax[i * outdims + d] = k;
+                }
+            }
         }
-
-        //Testing statement.
-        // System.out.println("Sum weight: " + sumWeights+"\n");
-
-        // return sum of weights as a double.
-        return sumWeights;
     }
 
 //    // DONE FOR TESTING THE WEIGHTS
@@ -198,4 +448,42 @@ public class EmbeddingBag implements Layer, java.io.Serializable {
 //
 //        System.out.println("All weights of sample: "+weights);
 //    }
+
+    /**
+     * Describes a layer in a model checkpoint as "vocabSize outdims pooling" followed by "MAPPED path",
+     * "FLOAT freeze" or "DOUBLE freeze". Frozen memory-mapped pre-trained embeddings are not copied:
+     * the checkpoint refers to their binary file (the path is the rest of the line).
+     */
+    private static class CheckpointCodec implements Checkpoint.Codec {
+        @Override
+        public String describe(Layer layer, List<Object> arrays) {
+            EmbeddingBag bag = (EmbeddingBag) layer;
+            String description = String.format("%d %d %s ", bag.vocabSize, bag.outdims, bag.pooling);
+            if (bag.embeddings != null)
+                return description + "MAPPED " + bag.embeddings.getPath();
+            if (bag.Wf != null) {
+                arrays.add(bag.Wf.data);
+                return description + "FLOAT " + bag.freeze;
+            }
+            arrays.add(bag.W.data);
+            return description + "DOUBLE " + bag.freeze;
+        }
+
+        @Override
+        public Layer read(String description, Checkpoint.Input in) throws IOException {
+            String[] fields = description.split(" ", 5);
+            int vocabSize = Integer.parseInt(fields[0]);
+            int outdims = Integer.parseInt(fields[1]);
+            EmbeddingBag bag;
+            if (fields[3].equals("MAPPED")) {
+                bag = new EmbeddingBag(vocabSize, outdims, PretrainedEmbeddings.open(fields[4]), true);
+            } else if (fields[3].equals("FLOAT")) {
+                bag = fromTable(vocabSize, outdims, in.readFloat(outdims, vocabSize), Boolean.parseBoolean(fields[4]));
+            } else {
+                bag = fromTable(vocabSize, outdims, in.readDouble(outdims, vocabSize), Boolean.parseBoolean(fields[4]));
+            }
+            bag.setPooling(Pooling.valueOf(fields[2]));
+            return bag;
+        }
+    }
 }
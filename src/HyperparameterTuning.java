@@ -2,9 +2,16 @@ package src;
 
 import minet.layer.*;
 import minet.layer.init.WeightInitXavier;
+import minet.loss.SoftmaxCrossEntropy;
+import minet.optim.Optimizer;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class HyperparameterTuning {
 
@@ -15,6 +22,10 @@ public class HyperparameterTuning {
     private VocabClassifier vocabClassifier;
     private int indims, hiddimsEmbedding, hiddimsOthers, outdims;
     private boolean linearNetwork;
+    private long seed;    // seed of the random generator choosing the hyperparameters and the seed of each trial.
+    private int workers;  // the number of trials trained concurrently.
+    private Precision precision = Precision.DOUBLE;  // the precision of the networks of the trials.
+    private Pooling pooling = Pooling.SUM;  // the pooling of the embedding bags of the trials.
 
     /**
      * Create a new hyperparameter tuning instance.
@@ -23,9 +34,13 @@ public class HyperparameterTuning {
      * @param learningRatesToTry
      * @param maxEpochsToTry
      * @param patienceToTry
+     * @param seed the random seed, so that the search is reproducible.
+     * @param workers the number of trials trained concurrently.
      */
-    public HyperparameterTuning(boolean linearNetwork, int indims, int hiddimsEmbedding, int hiddimsOthers, int outdims, VocabClassifier vocabClassifier, List<Double> learningRatesToTry, List<Integer> maxEpochsToTry, List<Integer> patienceToTry) {
+    public HyperparameterTuning(boolean linearNetwork, int indims, int hiddimsEmbedding, int hiddimsOthers, int outdims, VocabClassifier vocabClassifier, List<Double> learningRatesToTry, List<Integer> maxEpochsToTry, List<Integer> patienceToTry, long seed, int workers) {
         this.linearNetwork = linearNetwork;
+        this.seed = seed;
+        this.workers = Math.max(1, workers);
         this.indims = indims;
         this.hiddimsEmbedding = hiddimsEmbedding;
         this.hiddimsOthers = hiddimsOthers;
@@ -36,58 +51,237 @@ public class HyperparameterTuning {
         this.patienceToTry = patienceToTry;
     }
 
+    /**
+     * Set the precision of the networks of the trials (@see {@link Precision}).
+     * @param precision the precision
+     */
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * Set the pooling of the embedding bags of the trials (@see {@link Pooling}).
+     * @param pooling the pooling mode
+     */
+    public void setPooling(Pooling pooling) {
+        this.pooling = pooling;
+    }
+
+    /**
+     * A trial: a combination of hyperparameters, with its own network, optimizer, dataset iterators and seed.
+     * The network is created on the first call to {@link #train(int)} and kept, so a trial can be resumed.
+     */
+    private class Trial {
+        int iteration;
+        long trialSeed;
+        double learningRate;
+        int maxEpochs;
+        int patience;
+        VocabDataset trainset, devset;
+
+        Sequential net;
+        Optimizer optimizer;
+        int epochsTrained = 0;      // the number of epochs the network has been trained for so far.
+        boolean stoppedEarly;       // true if early stopping ended the training, which is then not resumed.
+        double bestValAcc = -1;     // the best validation accuracy so far.
+
+        /**
+         * Train the network for more epochs.
+         * @param epochs the number of epochs to train for.
+         * @return the best validation accuracy so far.
+         */
+        double train(int epochs) {
+            if (net == null) {
+                // Make a new temporary net to train using the randomly selected hyperparameters.
+                net = createNewNetwork(trialSeed);
+                optimizer = vocabClassifier.createOptimizer(net, learningRate);
+            }
+            VocabClassifier.TrainingResult result = vocabClassifier.train(net, new SoftmaxCrossEntropy(), optimizer, trainset, devset, epochs, patience);
+            epochsTrained += result.epochs;
+            stoppedEarly = result.stoppedEarly;
+            bestValAcc = Math.max(bestValAcc, result.bestValAcc);
+            return bestValAcc;
+        }
+    }
+
+    /**
+     * Sample the hyperparameters of a new trial.
+     *
+     * @param iteration the index of the trial.
+     * @param rnd the random generator drawing the seed of the trial.
+     * @return the trial.
+     */
+    private Trial sampleTrial(int iteration, Random rnd, VocabDataset trainset, VocabDataset devset) {
+        Trial trial = new Trial();
+        trial.iteration = iteration;
+        // Each trial has its own seed, used for choosing its hyperparameters, initialising and shuffling.
+        trial.trialSeed = rnd.nextLong();
+        Random trialRnd = new Random(trial.trialSeed);
+
+        // Get random index of value to try for each hyperparameter.
+        trial.learningRate = learningRatesToTry.get(getRandomIndex(learningRatesToTry.size(), trialRnd));
+        trial.maxEpochs = maxEpochsToTry.get(getRandomIndex(maxEpochsToTry.size(), trialRnd));
+        trial.patience = patienceToTry.get(getRandomIndex(patienceToTry.size(), trialRnd));
+
+        // Independent iterators over the datasets, so that trials do not share an index or a shuffle order.
+        trial.trainset = new VocabDataset(trainset, trialRnd);
+        trial.devset = new VocabDataset(devset, trialRnd);
+
+        System.out.println("\nITERATION: " + iteration);
+        System.out.println("HYPER-PARAMETERS CHOSEN:\nlearningRate: " + trial.learningRate + ", maxEpochs: " + trial.maxEpochs + ", patience: " + trial.patience);
+        return trial;
+    }
+
+    /**
+     * Train the trials concurrently and wait for all of them.
+     *
+     * @param executor the executor running the trials.
+     * @param trials the trials to train.
+     * @param epochs the number of epochs to train each trial for.
+     */
+    private void trainConcurrently(ExecutorService executor, List<Trial> trials, int[] epochs) {
+        List<Future<Double>> results = new ArrayList<>();
+        for (int i = 0; i < trials.size(); i++) {
+            Trial trial = trials.get(i);
+            int trialEpochs = epochs[i];
+            results.add(executor.submit(() -> trial.train(trialEpochs)));
+        }
+
+        for (int i = 0; i < trials.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException("hyperparameter trial " + trials.get(i).iteration + " failed", e);
+            }
+        }
+    }
+
     /**
      * Use the randomized search method to find the best hyperparameters for the model.
      * It is very IMPORTANT to only use the validation set to determine hyperparameters -> avoid overfitting.
+     * The trials are trained concurrently, each one with its own network, dataset iterators and random seed.
      *
      * @param iterations
      */
     public void randomizedSearch(int iterations, VocabDataset trainset, VocabDataset devset) {
-        // Store the best validation accuracy found so far.
-        double bestAccuracy = 0;
-
-        // Store the variable values of the best run so far.
-        double learningRateOnBestResult = 0;
-        int maxEpochsOnBestResult = 0;
-        int patienceOnBestResult = 0;
-
         System.out.println("HYPERPARAMETER TUNING STARTING");
 
         // Try out different combinations of hyperparameters.
+        Random rnd = new Random(seed);
+        List<Trial> trials = new ArrayList<>();
+        int[] epochs = new int[iterations];
         for (int i = 0; i < iterations; i++) {
-            // Make a new temporary net to train using the randomly selected hyperparameters.
-            Sequential net = createNewNetwork();
+            trials.add(sampleTrial(i, rnd, trainset, devset));
+            epochs[i] = trials.get(i).maxEpochs;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            trainConcurrently(executor, trials, epochs);
+        } finally {
+            // also stops the other trials if one of them failed
+            executor.shutdownNow();
+        }
+
+        // Find the trial with the best validation accuracy, in the order of the iterations.
+        Trial best = null;
+        for (Trial trial : trials) {
+            System.out.println("ITERATION " + trial.iteration + " best validation accuracy: " + trial.bestValAcc);
+            if (best == null || trial.bestValAcc > best.bestValAcc) {
+                best = trial;
+            }
+        }
+
+        printBest(best);
+    }
 
-            // Get random index of value to try for each hyperparameter.
-            double randomLearningRate = learningRatesToTry.get(getRandomIndex(learningRatesToTry.size()));
-            int randomMaxEpochs = maxEpochsToTry.get(getRandomIndex(maxEpochsToTry.size()));
-            int randomPatience = patienceToTry.get(getRandomIndex(patienceToTry.size()));
+    /**
+     * Use successive halving to find the best hyperparameters for the model: all the trials are trained for
+     * minEpochs epochs, then only the best 1/eta of them (by validation accuracy) are resumed for eta times more
+     * epochs, and so on until a single trial remains, which is then trained up to its maxEpochs.
+     * The partially trained networks are resumed, not retrained from scratch; a trial whose training was ended
+     * by early stopping is not resumed.
+     *
+     * @param iterations the number of trials to start with.
+     * @param minEpochs the number of epochs of the first rung.
+     * @param eta the reduction factor between rungs (e.g. 3 keeps the best third).
+     */
+    public void successiveHalving(int iterations, int minEpochs, int eta, VocabDataset trainset, VocabDataset devset) {
+        System.out.println("SUCCESSIVE HALVING TUNING STARTING");
 
-            System.out.println("\nITERATION: " + i);
+        Random rnd = new Random(seed);
+        List<Trial> trials = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            trials.add(sampleTrial(i, rnd, trainset, devset));
+        }
 
-            System.out.println("HYPER-PARAMETERS CHOSEN:\nlearningRate: " + randomLearningRate + ", maxEpochs: " + randomMaxEpochs + ", patience: " + randomPatience);
-            // Get best validation accuracy of the network using the randomly selected hyperparameter values.
-            double valAcc = vocabClassifier.tuningProcess(net, trainset, devset, randomLearningRate, randomMaxEpochs, randomPatience);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        int rungEpochs = minEpochs;  // the number of epochs trained by the end of the current rung.
+        try {
+            for (int rung = 0; ; rung++) {
+                // Resume each trial up to the epochs of this rung (capped by its own maxEpochs).
+                // The last remaining trial is trained up to its maxEpochs.
+                int budget = trials.size() == 1 ? Integer.MAX_VALUE : rungEpochs;
+                List<Trial> toTrain = new ArrayList<>();
+                List<Integer> epochs = new ArrayList<>();
+                for (Trial trial : trials) {
+                    int remaining = Math.min(budget, trial.maxEpochs) - trial.epochsTrained;
+                    if (remaining > 0 && !trial.stoppedEarly) {
+                        toTrain.add(trial);
+                        epochs.add(remaining);
+                    }
+                }
+                if (toTrain.isEmpty())
+                    break;
+                trainConcurrently(executor, toTrain, epochs.stream().mapToInt(i -> i).toArray());
 
-            if (valAcc > bestAccuracy) {
-                bestAccuracy = valAcc; // update the best accuracy value.
+                // Rank the trials by their best validation accuracy.
+                trials.sort((t1, t2) -> Double.compare(t2.bestValAcc, t1.bestValAcc));
+                System.out.println("\nRUNG " + rung + ": " + trials.size() + " trials");
+                for (Trial trial : trials) {
+                    System.out.println("ITERATION " + trial.iteration + " best validation accuracy: " + trial.bestValAcc);
+                }
 
-                // update the values of the hyperparameters to the new ones -> they are the ones that produces the best results.
-                learningRateOnBestResult = randomLearningRate;
-                maxEpochsOnBestResult = randomMaxEpochs;
-                patienceOnBestResult = randomPatience;
+                if (trials.size() == 1)
+                    break;
+                // Keep the best fraction of the trials.
+                trials = new ArrayList<>(trials.subList(0, Math.max(1, trials.size() / eta)));
+                rungEpochs *= eta;
             }
+        } finally {
+            // also stops the other trials if one of them failed
+            executor.shutdownNow();
         }
 
+        printBest(trials.get(0));
+    }
+
+    /**
+     * Print the hyperparameters of the best trial.
+     * @param best the best trial.
+     */
+    private void printBest(Trial best) {
         System.out.println("-------------------------------------------------------");
         System.out.println("\nFINISHED TUNING");
-        System.out.println("BEST HYPER-PARAMETERS FOUND \n learningRate: " + learningRateOnBestResult + ", maxEpochs: " + maxEpochsOnBestResult + ", patience: " + patienceOnBestResult);
+        System.out.println("BEST HYPER-PARAMETERS FOUND \n learningRate: " + best.learningRate + ", maxEpochs: " + best.maxEpochs + ", patience: " + best.patience);
     }
 
-    public int getRandomIndex(int listSize) {
-        return (int) (Math.random() * listSize);
+    public int getRandomIndex(int listSize, Random rnd) {
+        return rnd.nextInt(listSize);
     }
 
+    /**
+     * Create a new temporary network with weights initialised from the given seed. jblas uses a single
+     * global random generator, so networks are created one at a time to keep the initialisation reproducible.
+     * @param seed the seed of the weight initialisation.
+     * @return the new network created.
+     */
+    public Sequential createNewNetwork(long seed) {
+        synchronized (HyperparameterTuning.class) {
+            org.jblas.util.Random.seed(seed);
+            return createNewNetwork();
+        }
+    }
 
     /**
      * Create a new temporary network - used for tuning. If linear flag is true, has sparse matrix,
@@ -101,33 +295,34 @@ public class HyperparameterTuning {
             newNet = new Sequential(new Layer[]{
                     // Input to first hidden layer.
                     new Linear(indims, hiddimsEmbedding, new WeightInitXavier()),
-                    new ReLU(),
+                    new ReLU(true),
                     // first to second hidden layer.
                     new Linear(hiddimsEmbedding, hiddimsOthers, new WeightInitXavier()),
-                    new ReLU(),
+                    new ReLU(true),
                     // second to third hidden layer.
                     new Linear(hiddimsOthers, hiddimsOthers, new WeightInitXavier()),
-                    new ReLU(),
+                    new ReLU(true),
                     // third hidden layer to output.
-                    new Linear(hiddimsOthers, outdims, new WeightInitXavier()),
-                    new Softmax()});
+                    new Linear(hiddimsOthers, outdims, new WeightInitXavier())});
         }
         // Use EmbeddingBag as first hidden layer
         else {
+            EmbeddingBag embeddingBag = new EmbeddingBag(indims, hiddimsEmbedding, new WeightInitXavier());
+            embeddingBag.setPooling(pooling);
             newNet = new Sequential(new Layer[]{
                     // Input to first hidden layer (Embedding bag).
-                    new EmbeddingBag(indims, hiddimsEmbedding, new WeightInitXavier()),
-                    new ReLU(),
+                    embeddingBag,
+                    new ReLU(true),
                     // first to second hidden layer.
                     new Linear(hiddimsEmbedding, hiddimsOthers, new WeightInitXavier()),
-                    new ReLU(),
+                    new ReLU(true),
                     // second to third hidden layer.
                     new Linear(hiddimsOthers, hiddimsOthers, new WeightInitXavier()),
-                    new ReLU(),
+                    new ReLU(true),
                     // third hidden layer to output.
-                    new Linear(hiddimsOthers, outdims, new WeightInitXavier()),
-                    new Softmax()});
+                    new Linear(hiddimsOthers, outdims, new WeightInitXavier())});
         }
+        newNet.setPrecision(precision);
         return newNet;
     }
 
@@ -0,0 +1,14 @@
+package src;
+
+/**
+ * How an {@link EmbeddingBag} combines the embeddings of the words of a sample. Each word contributes
+ * its embedding scaled by its weight in the input (@see minet.data.SparseBatch#values), 1 by default.
+ */
+public enum Pooling {
+    /** The (weighted) sum of the embeddings (the default). */
+    SUM,
+    /** The weighted sum of the embeddings divided by the sum of the weights. */
+    MEAN,
+    /** The maximum of each dimension over the (weighted) embeddings. */
+    MAX
+}
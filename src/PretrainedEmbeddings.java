@@ -0,0 +1,175 @@
+package src;
+
+import minet.data.BinaryCache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Pre-trained word embeddings (e.g. word2vec vectors), stored off-heap in a memory-mapped binary float matrix.
+ * The vocabulary file ("word v1 v2 ... vD" per line) is converted once to a binary file next to it
+ * (little-endian: [magic, rows, dims, 0] then rows x dims floats, row-major), which later runs map directly.
+ */
+public class PretrainedEmbeddings implements java.io.Serializable {
+
+    private static final long serialVersionUID = 5012963377702194517L;
+    private static final int MAGIC = 0x4D4E4531;  // "MNE1"
+    private static final int HEADER_BYTES = 16;
+
+    private String path;   // path to the binary file
+    private int rows, dims;
+
+    // a single mapping is limited to 2GB, so large tables are mapped in segments of rowsPerSegment rows.
+    private transient FloatBuffer[] segments;
+    private transient int rowsPerSegment;
+
+    private PretrainedEmbeddings(String path) throws IOException {
+        this.path = path;
+        map();
+    }
+
+    /**
+     * Load the pre-trained embeddings of a vocabulary file, converting it to the binary format first if
+     * there is no up-to-date binary file.
+     *
+     * @param vocabPath path to the vocabulary file, each line is a word followed by its vector.
+     * @return the memory-mapped embeddings.
+     */
+    public static PretrainedEmbeddings fromFile(String vocabPath) throws IOException {
+        File binary = new File(vocabPath + ".emb");
+        if (!BinaryCache.isFresh(binary, vocabPath)) {
+            convert(vocabPath, binary);
+        }
+        return new PretrainedEmbeddings(binary.getPath());
+    }
+
+    /**
+     * Map an embedding file in the binary format, e.g. the one referenced by a model checkpoint.
+     *
+     * @param binaryPath path to the binary file (@see {@link #getPath()}).
+     * @return the memory-mapped embeddings.
+     */
+    public static PretrainedEmbeddings open(String binaryPath) throws IOException {
+        return new PretrainedEmbeddings(binaryPath);
+    }
+
+    /**
+     * Get the path to the binary file the embeddings are mapped from.
+     * @return the path.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Stream the vectors of a vocabulary file into the binary format, one row at a time. The file is written
+     * next to its destination and then renamed, so a failed conversion never leaves a partial binary file.
+     */
+    private static void convert(String vocabPath, File binary) throws IOException {
+        File tmp = new File(binary.getPath() + ".tmp");
+        try (BufferedReader br = new BufferedReader(new FileReader(vocabPath));
+             RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+             FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            channel.position(HEADER_BYTES);
+
+            int rows = 0, dims = -1;
+            ByteBuffer row = null;
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(" ", 2)[1].split(" ");
+                if (dims < 0) {
+                    dims = values.length;
+                    row = ByteBuffer.allocate(4 * dims).order(ByteOrder.LITTLE_ENDIAN);
+                } else if (values.length != dims) {
+                    throw new IOException(vocabPath + ": line " + (rows + 1) + " has " + values.length + " values instead of " + dims);
+                }
+
+                row.clear();
+                for (String value : values) {
+                    row.putFloat(Float.parseFloat(value));
+                }
+                row.flip();
+                while (row.hasRemaining()) {
+                    channel.write(row);
+                }
+                rows++;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(rows).putInt(Math.max(dims, 0)).putInt(0).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), binary.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void map() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException("not a valid embedding file: " + path);
+            rows = header.getInt();
+            dims = header.getInt();
+
+            rowsPerSegment = Math.max(1, Integer.MAX_VALUE / (4 * Math.max(dims, 1)));
+            segments = new FloatBuffer[(rows + rowsPerSegment - 1) / rowsPerSegment];
+            for (int s = 0; s < segments.length; s++) {
+                int segmentRows = Math.min(rowsPerSegment, rows - s * rowsPerSegment);
+                long start = HEADER_BYTES + 4L * dims * s * rowsPerSegment;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, 4L * dims * segmentRows)
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        map();
+    }
+
+    /**
+     * Get the number of words.
+     * @return the number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the size of each vector.
+     * @return the number of dimensions.
+     */
+    public int getDims() {
+        return dims;
+    }
+
+    /**
+     * Add the vector of a word to a contiguous array: acc[offset + d] += vector(row)[d].
+     * @param row the word index.
+     * @param acc the array, with at least offset + dims values.
+     * @param offset the position of the first dimension in acc.
+     */
+    public void addRowTo(int row, double[] acc, int offset) {
+        FloatBuffer segment = segments[row / rowsPerSegment];
+        int start = (row % rowsPerSegment) * dims;
+        for (int d = 0; d < dims; d++) {
+            acc[offset + d] += segment.get(start + d);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package src;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import minet.data.SparseBatch;
+import minet.layer.Layer;
+import minet.util.Checkpoint;
+import minet.util.MicroBatcher;
+import minet.util.Pair;
+import org.jblas.DoubleMatrix;
+import org.jblas.util.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the predictions of a trained question classifier (a {@link Checkpoint} saved by A4Main with
+ * save=<modelFile>) over a local HTTP endpoint.
+ * Questions are tokenized with {@link QuestionTokenizer}, weighted like the training data (binary, count
+ * or tfidf, @see {@link #saveInputWeighting(String, String, double[])}) and answered in micro-batches
+ * (@see {@link MicroBatcher}): concurrent requests share one forward of the network.
+ *
+ * GET  /predict?q=what+is+the+capital+of+france+%3F  returns the class of the question.
+ * POST /predict with one question per line            returns one class per line.
+ * GET  /stats                                         returns the latency of the recent requests.
+ */
+public class QuestionServer {
+
+    private Layer net;
+    private QuestionTokenizer tokenizer;
+    private List<String> classes;
+    private boolean sparseInput;  // false if the network starts with a Linear layer (part1)
+    private int inputDims;
+    private MicroBatcher<int[], String> batcher;
+    private boolean wordCounts;     // true to keep repeated words (count and tfidf weighting)
+    private double[] wordWeights;   // the idf of each word (tfidf weighting), or null
+    // the latency (ns) of the last requests answered, in a ring buffer
+    private final long[] latencies = new long[1024];
+    private long nRequests;
+
+    /**
+     * Create a server for a trained network.
+     *
+     * @param net the trained network.
+     * @param tokenizer the tokenizer of the vocabulary the network was trained with.
+     * @param classes the names of the classes, in the order of the output of the network.
+     * @param sparseInput false if the network takes one-hot matrices instead of sparse word-index batches.
+     * @param inputDims the number of input features (vocabulary size).
+     * @param maxBatchSize the maximum number of questions in one forward.
+     * @param maxDelayMillis the maximum time a question waits for others to fill its batch.
+     */
+    public QuestionServer(Layer net, QuestionTokenizer tokenizer, List<String> classes, boolean sparseInput,
+                          int inputDims, int maxBatchSize, long maxDelayMillis) {
+        this.net = net;
+        this.tokenizer = tokenizer;
+        this.classes = classes;
+        this.sparseInput = sparseInput;
+        this.inputDims = inputDims;
+        // inference mode: forward keeps nothing for backward
+        net.setTraining(false);
+        this.batcher = new MicroBatcher<>(this::predict, maxBatchSize, maxDelayMillis);
+    }
+
+    /**
+     * Weight the words of the questions like the training data of the network.
+     * @param weighting binary, count or tfidf (@see {@link VocabDataset#setWordCounts(boolean)}).
+     * @param idf the idf of each word for tfidf weighting (@see {@link VocabDataset#computeIdf()}), or null.
+     */
+    public void setInputWeighting(String weighting, double[] idf) {
+        if (weighting.equals("tfidf") && idf == null)
+            throw new IllegalArgumentException("tfidf weighting requires the idf of the words");
+        this.wordCounts = !weighting.equals("binary");
+        this.wordWeights = weighting.equals("tfidf") ? idf : null;
+    }
+
+    /**
+     * Classify a question. The question is batched with the other questions received meanwhile.
+     * @param question the raw question.
+     * @return a future completed with the name of the predicted class.
+     */
+    public CompletableFuture<String> submit(String question) {
+        return batcher.submit(tokenizer.toIndices(question, wordCounts));
+    }
+
+    /**
+     * Classify a batch of questions with one forward of the network. Only called by the batching thread.
+     */
+    private List<String> predict(List<int[]> questions) {
+        List<Pair<int[], Integer>> batch = new ArrayList<>();
+        for (int[] question : questions) {
+            batch.add(new Pair<>(question, 0));
+        }
+        SparseBatch X = VocabDataset.toSparseBatch(batch, wordWeights).first;
+        DoubleMatrix Yhat = net.forward(sparseInput ? X : X.toDense(inputDims));
+
+        List<String> preds = new ArrayList<>();
+        for (int pred : Yhat.rowArgmaxs()) {
+            preds.add(classes.get(pred));
+        }
+        return preds;
+    }
+
+    /**
+     * Start serving on a port of the loopback interface.
+     * @param port the port.
+     * @param handlerThreads the number of connections handled concurrently (each waits for its batch).
+     * @return the HTTP server.
+     * @throws IOException
+     */
+    public HttpServer start(int port, int handlerThreads) throws IOException {
+        return start(null, port, handlerThreads);
+    }
+
+    /**
+     * Start serving on a port.
+     * @param host the address to listen on, or null for the loopback interface only.
+     * @param port the port.
+     * @param handlerThreads the number of connections handled concurrently (each waits for its batch).
+     * @return the HTTP server.
+     * @throws IOException
+     */
+    public HttpServer start(String host, int port, int handlerThreads) throws IOException {
+        InetAddress address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/predict", this::handle);
+        server.createContext("/stats", exchange -> respond(exchange, 200, latencyReport()));
+        server.setExecutor(Executors.newFixedThreadPool(handlerThreads));
+        server.start();
+        return server;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        List<String> questions = new ArrayList<>();
+        if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            InputStream in = exchange.getRequestBody();
+            BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.trim().isEmpty())
+                    questions.add(line);
+            }
+        } else {
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String param : query.split("&")) {
+                    if (param.startsWith("q="))
+                        questions.add(URLDecoder.decode(param.substring(2), "UTF-8"));
+                }
+            }
+        }
+        if (questions.isEmpty()) {
+            respond(exchange, 400, "no question given: use /predict?q=<question> or POST one question per line\n");
+            return;
+        }
+
+        // submit all the questions first so they can share a batch
+        List<CompletableFuture<String>> preds = new ArrayList<>();
+        for (String question : questions) {
+            preds.add(submit(question));
+        }
+        StringBuilder response = new StringBuilder();
+        try {
+            for (CompletableFuture<String> pred : preds) {
+                response.append(pred.get()).append('\n');
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            respond(exchange, 500, "prediction failed: " + e.getMessage() + "\n");
+            return;
+        }
+        respond(exchange, 200, response.toString());
+        recordLatency(System.nanoTime() - start);
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[(int) (nRequests++ % latencies.length)] = nanos;
+    }
+
+    /**
+     * Report the latency of the requests answered so far: from the start of handling a request to the end
+     * of its response, over the last 1024 requests.
+     * @return the number of requests, and the mean, median, 95th/99th percentiles and maximum latency (ms).
+     */
+    public String latencyReport() {
+        long[] recent;
+        long n;
+        synchronized (this) {
+            n = nRequests;
+            recent = Arrays.copyOf(latencies, (int) Math.min(n, latencies.length));
+        }
+        if (recent.length == 0)
+            return "requests: 0\n";
+        Arrays.sort(recent);
+        double mean = 0;
+        for (long latency : recent) {
+            mean += latency;
+        }
+        mean /= recent.length;
+        return String.format("requests: %d\nmean: %.3f ms\np50: %.3f ms\np95: %.3f ms\np99: %.3f ms\nmax: %.3f ms\n",
+                n, mean / 1e6, percentile(recent, 0.50) / 1e6, percentile(recent, 0.95) / 1e6,
+                percentile(recent, 0.99) / 1e6, recent[recent.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stop batching.
+     */
+    public void shutdown() {
+        batcher.shutdown();
+    }
+
+    /**
+     * Save how the input words of a model are weighted, next to the model file (modelFile.input), so that
+     * the server weights the questions the same way: the weighting on the first line, followed by the idf
+     * of each word for tfidf weighting.
+     * @param modelPath path to the model file.
+     * @param weighting binary, count or tfidf.
+     * @param idf the idf of each word for tfidf weighting, or null.
+     * @throws IOException
+     */
+    public static void saveInputWeighting(String modelPath, String weighting, double[] idf) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(modelPath + ".input"))) {
+            out.println(weighting);
+            if (weighting.equals("tfidf")) {
+                for (double value : idf) {
+                    out.println(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the input weighting saved with a model (@see {@link #saveInputWeighting(String, String, double[])})
+     * into a server.
+     * @param modelPath path to the model file.
+     * @return the weighting, binary if none was saved.
+     * @throws IOException
+     */
+    public String loadInputWeighting(String modelPath) throws IOException {
+        File file = new File(modelPath + ".input");
+        if (!file.isFile())
+            return "binary";
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String weighting = br.readLine().trim();
+            double[] idf = null;
+            if (weighting.equals("tfidf")) {
+                idf = new double[inputDims];
+                for (int i = 0; i < idf.length; i++) {
+                    idf[i] = Double.parseDouble(br.readLine());
+                }
+            }
+            setInputWeighting(weighting, idf);
+            return weighting;
+        }
+    }
+
+    /**
+     * Read the names of the classes, one per line.
+     * @param path path to the classes file.
+     * @return the names of the classes.
+     * @throws IOException
+     */
+    public static List<String> readClasses(String path) throws IOException {
+        List<String> classes = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                classes.add(line.trim());
+            }
+        }
+        return classes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java QuestionServer <modelFile> <vocabFile> <classesFile> [host=<address>] [port=<P>] [batch=<M>] [delay=<N ms>] [dense]");
+            return;
+        }
+
+        // turn off jblas info messages
+        Logger.getLogger().setLevel(Logger.WARNING);
+
+        String host = null;  // the loopback interface only
+        int port = 8080;
+        int maxBatchSize = 64;
+        long maxDelayMillis = 5;
+        boolean sparseInput = true;
+        for (int i = 3; i < args.length; i++) {
+            // the address to listen on, e.g. host=0.0.0.0 for all the interfaces.
+            if (args[i].startsWith("host=")) {
+                host = args[i].substring("host=".length());
+            }
+            if (args[i].startsWith("port=")) {
+                port = Integer.parseInt(args[i].substring("port=".length()));
+            }
+            // the maximum number of questions in one forward.
+            if (args[i].startsWith("batch=")) {
+                maxBatchSize = Integer.parseInt(args[i].substring("batch=".length()));
+            }
+            // the maximum time (ms) a question waits for others to fill its batch.
+            if (args[i].startsWith("delay=")) {
+                maxDelayMillis = Long.parseLong(args[i].substring("delay=".length()));
+            }
+            // models of part1 take one-hot matrices.
+            if (args[i].equalsIgnoreCase("dense")) {
+                sparseInput = false;
+            }
+        }
+
+        Layer net = Checkpoint.load(args[0]);
+        QuestionTokenizer tokenizer = new QuestionTokenizer(args[1]);
+        List<String> classes = readClasses(args[2]);
+        QuestionServer server = new QuestionServer(net, tokenizer, classes, sparseInput, tokenizer.size(), maxBatchSize, maxDelayMillis);
+        String weighting = server.loadInputWeighting(args[0]);
+        HttpServer http = server.start(host, port, 2 * maxBatchSize);
+        System.out.printf("serving %s on http://%s:%d/predict (batch=%d, delay=%dms, weights=%s)\n", args[0],
+                http.getAddress().getHostString(), port, maxBatchSize, maxDelayMillis, weighting);
+        // report the serving latency when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print("\n" + server.latencyReport())));
+    }
+}
@@ -0,0 +1,129 @@
+package src;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns raw questions into the word indices of a vocabulary file, the input format of {@link VocabDataset}.
+ * The vocabulary is lower-cased and tokenized like the training data ("what 's the capital of france ?"),
+ * so punctuation and the clitics 's / n't are split from the words. Unknown words are mapped to #unk#.
+ */
+public class QuestionTokenizer {
+
+    private static final String UNKNOWN = "#unk#";
+
+    private Map<String, Integer> vocabulary = new HashMap<>();
+    private int unknownIndex;  // index of #unk#, -1 if the vocabulary has none (unknown words are dropped)
+    private int size;          // the number of lines of the vocabulary file
+
+    /**
+     * Load the vocabulary.
+     * @param pathVocabulary path to the vocabulary file, one word per line (possibly followed by its vector).
+     * @throws IOException
+     */
+    public QuestionTokenizer(String pathVocabulary) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(pathVocabulary))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int end = line.indexOf(' ');
+                String word = end < 0 ? line : line.substring(0, end);
+                vocabulary.putIfAbsent(word, size++);
+            }
+        }
+        unknownIndex = vocabulary.getOrDefault(UNKNOWN, -1);
+    }
+
+    /**
+     * Get the size of the vocabulary, i.e. the number of input features of the network.
+     * @return the number of words.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the bag of words of a question.
+     * @param question the raw question.
+     * @return the sorted array of distinct word indices, @see {@link VocabDataset#toBagOfWords(int[])}.
+     */
+    public int[] toIndices(String question) {
+        return toIndices(question, false);
+    }
+
+    /**
+     * Get the word indices of a question.
+     * @param question the raw question.
+     * @param wordCounts true to keep repeated words, like a dataset with word counts (@see {@link VocabDataset#setWordCounts(boolean)}).
+     * @return the sorted array of word indices (distinct unless wordCounts).
+     */
+    public int[] toIndices(String question, boolean wordCounts) {
+        List<String> tokens = tokenize(question);
+        int[] indices = new int[tokens.size()];
+        int n = 0;
+        for (String token : tokens) {
+            int index = lookup(token);
+            if (index >= 0)
+                indices[n++] = index;
+        }
+        int[] bag = new int[n];
+        System.arraycopy(indices, 0, bag, 0, n);
+        if (wordCounts) {
+            Arrays.sort(bag);
+            return bag;
+        }
+        return VocabDataset.toBagOfWords(bag);
+    }
+
+    /**
+     * Split a question into lower-cased tokens.
+     * @param question the raw question.
+     * @return the tokens.
+     */
+    public List<String> tokenize(String question) {
+        List<String> tokens = new ArrayList<>();
+        for (String word : question.toLowerCase().trim().split("\\s+")) {
+            // leading punctuation and quotes
+            int start = 0, end = word.length();
+            while (start < end && isPunctuation(word.charAt(start))) {
+                tokens.add(word.substring(start, start + 1));
+                start++;
+            }
+            // trailing punctuation, but keep the dot of known abbreviations (e.g. "u.s.")
+            List<String> trailing = new ArrayList<>();
+            while (end > start && isPunctuation(word.charAt(end - 1))
+                    && !(word.charAt(end - 1) == '.' && vocabulary.containsKey(word.substring(start, end)))) {
+                trailing.add(0, word.substring(end - 1, end));
+                end--;
+            }
+            String core = word.substring(start, end);
+            // clitics
+            if (core.endsWith("n't") && core.length() > 3) {
+                tokens.add(core.substring(0, core.length() - 3));
+                tokens.add("n't");
+            } else if (core.endsWith("'s") && core.length() > 2) {
+                tokens.add(core.substring(0, core.length() - 2));
+                tokens.add("'s");
+            } else if (!core.isEmpty()) {
+                tokens.add(core);
+            }
+            tokens.addAll(trailing);
+        }
+        return tokens;
+    }
+
+    private int lookup(String token) {
+        Integer index = vocabulary.get(token);
+        return index != null ? index : unknownIndex;
+    }
+
+    private static boolean isPunctuation(char c) {
+        return c == '?' || c == '.' || c == ',' || c == '!' || c == ';' || c == ':' || c == '"'
+                || c == '`' || c == '\'' || c == '(' || c == ')';
+    }
+}
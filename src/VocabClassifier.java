@@ -1,24 +1,178 @@
 package src;
 
+import minet.data.Dataset;
+import minet.data.Prefetcher;
+import minet.data.SparseBatch;
 import minet.layer.Layer;
 import minet.layer.Sequential;
-import minet.loss.CrossEntropy;
+import minet.loss.SoftmaxCrossEntropy;
 import minet.loss.Loss;
+import minet.optim.GradientClipping;
+import minet.optim.LRScheduler;
 import minet.optim.Optimizer;
+import minet.optim.OptimizerWrapper;
 import minet.optim.SGD;
+import minet.util.Accuracy;
+import minet.util.AsyncCheckpointer;
+import minet.util.Checkpoint;
+import minet.util.ConfusionMatrix;
+import minet.util.DataParallel;
+import minet.util.Hogwild;
 import minet.util.Pair;
+import minet.util.ParallelEvaluator;
 import org.jblas.DoubleMatrix;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 public class VocabClassifier {
 
     private boolean verbose;
+    private boolean sparseInput;  // if true, feed sparse word-index batches (EmbeddingBag) instead of one-hot matrices (Linear)
+    private int numThreads = 1;   // number of data-parallel workers used for training
+    private boolean async;        // if true, the workers update the weights asynchronously (Hogwild)
+    private String checkpointDir; // if not null, checkpoints of the training are written to this directory
+    private int checkpointEvery;  // the latest state is checkpointed every checkpointEvery epochs
+    private boolean resume;       // if true, training resumes from the latest checkpoint in checkpointDir
+    private int prefetchDepth = 2; // the number of training mini-batches converted ahead on a producer thread
+    private int evalEvery = 1;     // the dev set is evaluated every evalEvery epochs
+    private ParallelEvaluator evaluator = new ParallelEvaluator(1);  // evaluates the datasets
+    private List<String> classNames;  // the names of the classes, for the report of the test set, or null
+    private double[] wordWeights;  // the weight of each word in the input batches (e.g. idf), or null
+    private BiFunction<Layer, Double, Optimizer> optimizerFactory = SGD::new;  // creates the optimizer of a network given a learning rate
 
-    public VocabClassifier(boolean verbose) {
+    /**
+     * The outcome of a call to {@link #train(Layer, Loss, Optimizer, VocabDataset, VocabDataset, int, int)}.
+     */
+    public static class TrainingResult {
+        /** the best validation accuracy. */
+        public final double bestValAcc;
+        /** the number of epochs trained by the call, fewer than requested if training stopped early. */
+        public final int epochs;
+        /** true if training stopped because the validation accuracy did not improve for patience epochs. */
+        public final boolean stoppedEarly;
+
+        TrainingResult(double bestValAcc, int epochs, boolean stoppedEarly) {
+            this.bestValAcc = bestValAcc;
+            this.epochs = epochs;
+            this.stoppedEarly = stoppedEarly;
+        }
+    }
+
+    /**
+     * Everything besides the weights needed to resume training where it stopped.
+     */
+    private static class TrainingState implements Serializable {
+        private static final long serialVersionUID = -2370968460817722467L;
+
+        int nextEpoch;
+        int notAtPeak;
+        double peakAcc;
+        List<Double> trainingAccuracies;
+        List<Double> validationAccuracies;
+        Serializable optimizerState;
+        Dataset.State trainState;
+    }
+
+    public VocabClassifier(boolean verbose, boolean sparseInput) {
         this.verbose = verbose;
+        this.sparseInput = sparseInput;
+    }
+
+    /**
+     * Set the number of threads used for training. With more than one thread, each mini-batch is split
+     * across replicas of the network and their gradients are reduced before a single weight update.
+     * @param numThreads the number of threads (at least 1)
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Set the number of training mini-batches converted ahead on a producer thread (@see {@link Prefetcher}),
+     * so that building the input matrices overlaps with forward/backward. Not used by Hogwild training.
+     * @param depth the number of mini-batches, 0 to convert each mini-batch on the training thread
+     */
+    public void setPrefetch(int depth) {
+        this.prefetchDepth = Math.max(0, depth);
+    }
+
+    /**
+     * Evaluate the dev set only every few epochs (and at the last epoch), to save the time of the other
+     * evaluations. Early stopping then counts evaluations: training stops after patience evaluations
+     * without improvement.
+     * @param epochs the number of epochs between two evaluations (at least 1)
+     */
+    public void setEvalEvery(int epochs) {
+        this.evalEvery = Math.max(1, epochs);
+    }
+
+    /**
+     * Set the number of threads used for evaluation. The mini-batches are evaluated in parallel by replicas
+     * of the network sharing its weights (@see {@link ParallelEvaluator}), with the same result.
+     * @param numThreads the number of threads (at least 1)
+     */
+    public void setEvalThreads(int numThreads) {
+        evaluator.shutdown();
+        this.evaluator = new ParallelEvaluator(numThreads);
+    }
+
+    /**
+     * Set the names of the classes, in the order of the output of the network (e.g. read from classes.txt),
+     * so that {@link #trainAndEval} reports the performance of each class on the test set.
+     * @param classNames the names of the classes, or null for no report
+     */
+    public void setClassNames(List<String> classNames) {
+        this.classNames = classNames;
+    }
+
+    /**
+     * Set the optimizer used by {@link #trainAndEval} and {@link #tuningProcess} (SGD by default),
+     * e.g. {@code (net, lr) -> new Adam(net, lr)}.
+     * @param optimizerFactory creates the optimizer of a network given a learning rate
+     */
+    public void setOptimizer(BiFunction<Layer, Double, Optimizer> optimizerFactory) {
+        this.optimizerFactory = optimizerFactory;
+    }
+
+    /**
+     * Create the optimizer of a network (@see {@link #setOptimizer(BiFunction)}).
+     * @param net the network
+     * @param learningRate the learning rate
+     * @return the optimizer
+     */
+    public Optimizer createOptimizer(Layer net, double learningRate) {
+        return optimizerFactory.apply(net, learningRate);
+    }
+
+    /**
+     * Weight each word of the input batches, e.g. by its idf for TF-IDF weights
+     * (@see {@link VocabDataset#toSparseBatch(List, double[])}).
+     * @param wordWeights the weight of each word, or null for count (or binary) weights
+     */
+    public void setWordWeights(double[] wordWeights) {
+        this.wordWeights = wordWeights;
+    }
+
+    /**
+     * Checkpoint the training: the best weights (by dev accuracy) are written to dir/best.ck whenever they
+     * improve, and the weights and training state to dir/last.ck and dir/last.state every few epochs.
+     * Checkpoints are written on a background thread.
+     * @param dir the checkpoint directory
+     * @param every the number of epochs between two checkpoints of the latest state
+     * @param resume if true, training resumes from dir/last.* (if present): weights, optimizer state,
+     *               order and random generator of the training set, epoch counter and early-stopping state
+     */
+    public void setCheckpointing(String dir, int every, boolean resume) {
+        this.checkpointDir = dir;
+        this.checkpointEvery = Math.max(1, every);
+        this.resume = resume;
     }
 
     /**
@@ -33,10 +187,10 @@ public class VocabClassifier {
      * @return
      */
     public double tuningProcess(Sequential net, VocabDataset trainset, VocabDataset devset, double learningRate, int maxEpochs, int patience) {
-        CrossEntropy loss = new CrossEntropy();
-        Optimizer sgd = new SGD(net, learningRate);
+        SoftmaxCrossEntropy loss = new SoftmaxCrossEntropy();
+        Optimizer sgd = createOptimizer(net, learningRate);
 
-        double bestValAcc = train(net, loss, sgd, trainset, devset, maxEpochs, patience);
+        double bestValAcc = train(net, loss, sgd, trainset, devset, maxEpochs, patience).bestValAcc;
         return bestValAcc;
     }
 
@@ -53,82 +207,154 @@ public class VocabClassifier {
      * @param patience the patience value.
      */
     public void trainAndEval(Sequential net, VocabDataset trainset, VocabDataset devset, VocabDataset testset, double learningRate, int maxEpochs, int patience) {
-        CrossEntropy loss = new CrossEntropy();
-        Optimizer sgd = new SGD(net, learningRate);
+        SoftmaxCrossEntropy loss = new SoftmaxCrossEntropy();
+        Optimizer sgd = createOptimizer(net, learningRate);
         System.out.println(net);
 
         // train network
         System.out.println("\nTraining...");
 
-        double bestValAcc = train(net, loss, sgd, trainset, devset, maxEpochs, patience);
+        // test the weights of the best epoch
+        double bestValAcc = train(net, loss, sgd, trainset, devset, maxEpochs, patience, true).bestValAcc;
 
         // perform on test set
-        double testAcc = eval(net, testset);
+        ConfusionMatrix confusion = evaluate(net, testset);
+        double testAcc = (double) confusion.getCorrect() / testset.getSize();
         System.out.printf("\nTest accuracy: %.4f\n", testAcc);
+        if (classNames != null) {
+            System.out.println("\n" + confusion.report(classNames, 10));
+        }
     }
 
 
+    /**
+     * Use asynchronous lock-free training (Hogwild) when training with more than one thread: each thread
+     * takes its own mini-batches and updates the shared weights without waiting for the others.
+     * @param async true for asynchronous training
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
     /**
      * Convert a mini-batch of the vocabulary dataset to data structure that can be used by the network - pair
-     * of double matrices, where the first element of the pair is the input (X) and the second is the label (Y).
+     * where the first element of the pair is the input (X) and the second is the label (Y). The input is a
+     * {@link SparseBatch} when the network starts with an EmbeddingBag, otherwise a dense one-hot DoubleMatrix.
      *
      * @param batch
-     * @return two DoubleMatrix objects: X (input) and Y (labels)
+     * @param inputDims the number of input features (vocabulary size)
+     * @return X (input) and Y (labels)
      */
-    public Pair<DoubleMatrix, DoubleMatrix> convertToDoubleMatrixPair(List<Pair<double[], Integer>> batch) {
-        if (batch == null)
+    public Pair<Object, DoubleMatrix> convertToInputPair(List<Pair<int[], Integer>> batch, int inputDims) {
+        return convertToInputPair(batch, inputDims, null);
+    }
+
+    /**
+     * Convert a mini-batch like {@link #convertToInputPair(List, int)}, reusing the one-hot matrix of a
+     * converted mini-batch that is no longer used.
+     *
+     * @param batch
+     * @param inputDims the number of input features (vocabulary size)
+     * @param reuse a previously converted mini-batch, or null
+     * @return X (input) and Y (labels)
+     */
+    public Pair<Object, DoubleMatrix> convertToInputPair(List<Pair<int[], Integer>> batch, int inputDims,
+                                                         Pair<Object, DoubleMatrix> reuse) {
+        Pair<SparseBatch, DoubleMatrix> sparse = VocabDataset.toSparseBatch(batch, wordWeights);
+        if (sparse == null)
             return null;
 
-        double[][] xs = new double[batch.size()][];
-        double[] ys = new double[batch.size()];
+        // the one-hot matrix is only built for the current mini-batch.
+        Object X = sparse.first;
+        if (!sparseInput) {
+            DoubleMatrix buffer = reuse != null && reuse.first instanceof DoubleMatrix ? (DoubleMatrix) reuse.first : null;
+            X = sparse.first.toDense(inputDims, buffer);
+        }
+        return new Pair<Object, DoubleMatrix>(X, sparse.second);
+    }
+
+    /**
+     * Split a mini-batch into (at most) numThreads shards of similar sizes, each converted with
+     * {@link #convertToInputPair(List, int)}.
+     *
+     * @param batch
+     * @param inputDims the number of input features (vocabulary size)
+     * @return the list of shards
+     */
+    public List<Pair<Object, DoubleMatrix>> splitIntoShards(List<Pair<int[], Integer>> batch, int inputDims) {
+        return splitIntoShards(batch, inputDims, null);
+    }
 
-        // iterate through the batch size.
-        for (int i = 0; i < batch.size(); i++) {
-            xs[i] = batch.get(i).first;
-            ys[i] = (double) batch.get(i).second;
+    /**
+     * Split a mini-batch like {@link #splitIntoShards(List, int)}, reusing the buffers of the shards of a
+     * mini-batch that is no longer used.
+     *
+     * @param batch
+     * @param inputDims the number of input features (vocabulary size)
+     * @param reuse the shards of a previous mini-batch, or null
+     * @return the list of shards
+     */
+    public List<Pair<Object, DoubleMatrix>> splitIntoShards(List<Pair<int[], Integer>> batch, int inputDims,
+                                                            List<Pair<Object, DoubleMatrix>> reuse) {
+        int nShards = Math.min(numThreads, batch.size());
+        List<Pair<Object, DoubleMatrix>> shards = new ArrayList<>();
+        for (int k = 0; k < nShards; k++) {
+            int start = k * batch.size() / nShards;
+            int end = (k + 1) * batch.size() / nShards;
+            Pair<Object, DoubleMatrix> old = reuse != null && k < reuse.size() ? reuse.get(k) : null;
+            shards.add(convertToInputPair(batch.subList(start, end), inputDims, old));
         }
-        // create new double matrices for X and Y.
-        DoubleMatrix X = new DoubleMatrix(xs);
-        DoubleMatrix Y = new DoubleMatrix(ys.length, 1, ys);
-        return new Pair<DoubleMatrix, DoubleMatrix>(X, Y);
+        return shards;
+    }
+
+    /**
+     * Get a thread-safe source of the mini-batches of one epoch, returning null once the epoch is finished.
+     *
+     * @param data the vocabulary dataset
+     * @return a supplier of converted mini-batches
+     */
+    private Supplier<Pair<Object, DoubleMatrix>> concurrentMiniBatches(VocabDataset data) {
+        boolean[] finished = {false};
+        return () -> {
+            List<Pair<int[], Integer>> items;
+            synchronized (data) {
+                // the dataset is reshuffled at the end of the epoch, so the other threads must stop there.
+                if (finished[0])
+                    return null;
+                items = data.getNextMiniBatch();
+                if (items == null) {
+                    finished[0] = true;
+                    return null;
+                }
+                items = new ArrayList<>(items);
+            }
+            return convertToInputPair(items, data.getInputDims());
+        };
     }
 
     /**
-     * calculate classification accuracy of an ANN for our NLP problem.
+     * calculate classification accuracy of an ANN for our NLP problem. The iteration over the data is not changed.
      *
      * @param net  an ANN model
      * @param data the vocabulary dataset
      * @return the classification accuracy value (double, in the range of [0,1])
      */
     public double eval(Layer net, VocabDataset data) {
-        // reset index of the data
-        data.reset();
-
-        // the number of correct predictions so far
-        double correct = 0;
-
-        while (true) {
-            // we evaluate per mini-batch
-            Pair<DoubleMatrix, DoubleMatrix> batch = convertToDoubleMatrixPair(data.getNextMiniBatch());
-            if (batch == null)
-                break;
-
-            // Perform forward pass to calculate the predictions.
-            DoubleMatrix Yhat = net.forward(batch.first);
-
-            // Assign prediction with the highest probability.
-            int[] preds = Yhat.rowArgmaxs();
-
-            // Count the number of correct predictions.
-            for (int i = 0; i < preds.length; i++) {
-                if (preds[i] == (int) batch.second.data[i])
-                    correct++;
-            }
-        }
+        // Calculate the classification accuracy.
+        return (double) evaluate(net, data).getCorrect() / data.getSize();
+    }
 
-        // Calculate the classification accuract.
-        double acc = correct / data.getSize();
-        return acc;
+    /**
+     * Compute the confusion matrix of an ANN for our NLP problem, on several threads (@see {@link #setEvalThreads(int)}).
+     * The iteration over the data is not changed.
+     *
+     * @param net  an ANN model
+     * @param data the vocabulary dataset
+     * @return the confusion matrix of the predictions (the highest score, softmax keeps the order of the scores)
+     */
+    public ConfusionMatrix evaluate(Layer net, VocabDataset data) {
+        // a separate pass, which leaves the index and the order of the data unchanged
+        return evaluator.evaluate(net, data.batches(), items -> convertToInputPair(items, data.getInputDims()));
     }
 
 
@@ -137,14 +363,27 @@ public class VocabClassifier {
      *
      * @param net       an ANN model to be trained
      * @param loss      a loss function object
-     * @param optimizer the optimizer used for updating the model's weights (currently only SGD is supported)
+     * @param optimizer the optimizer used for updating the model's weights (asynchronous training requires SGD,
+     *                  possibly wrapped, and then only applies the learning rate schedule at the end of each epoch)
      * @param traindata training dataset
      * @param devdata   validation dataset (also called development dataset), used for early stopping
      * @param nEpochs   the maximum number of training epochs
      * @param patience  the maximum number of consecutive epochs where validation performance is allowed to non-increased, used for early stopping
+     * @return the best validation accuracy and the number of epochs actually trained
      */
-    public double train(Layer net, Loss loss, Optimizer optimizer, VocabDataset traindata,
+    public TrainingResult train(Layer net, Loss loss, Optimizer optimizer, VocabDataset traindata,
                         VocabDataset devdata, int nEpochs, int patience) {
+        // the network keeps its latest weights, so training can be continued
+        return train(net, loss, optimizer, traindata, devdata, nEpochs, patience, false);
+    }
+
+    /**
+     * train an ANN for our NLP problem (@see {@link #train(Layer, Loss, Optimizer, VocabDataset, VocabDataset, int, int)}).
+     *
+     * @param restoreBest if true, the weights of the best epoch (by validation accuracy) are restored at the end
+     */
+    private TrainingResult train(Layer net, Loss loss, Optimizer optimizer, VocabDataset traindata,
+                         VocabDataset devdata, int nEpochs, int patience, boolean restoreBest) {
         long startTime = System.nanoTime(); // start timer.
 
         List<Double> trainingAccuracies = new ArrayList<>();
@@ -154,59 +393,172 @@ public class VocabClassifier {
         double peakAcc = -1;  // the best accuracy of the previous epochs
         double totalLoss = 0;  // the total loss of the current epoch
 
-        traindata.reset(); // reset index and shuffle the dataset before training
-
-        for (int e = 0; e < nEpochs; e++) {
-            totalLoss = 0;
-
-            while (true) {
-                // get the next mini-batch
-                Pair<DoubleMatrix, DoubleMatrix> batch = convertToDoubleMatrixPair(traindata.getNextMiniBatch());
-
-                if (batch == null)
-                    break;
-
-                // always reset the gradients before performing backward
-                optimizer.resetGradients();
-                // calculate the loss value
-                DoubleMatrix Yhat = net.forward(batch.first);
-
-                double lossVal = loss.forward(batch.second, Yhat);
-
-                // calculate gradients of the weights using backprop algorithm
-                net.backward(loss.backward());
+        // replicas of the network for data-parallel or asynchronous (Hogwild) training.
+        DataParallel parallel = null;
+        Hogwild hogwild = null;
+        if (numThreads > 1 && async) {
+            Optimizer sgd = OptimizerWrapper.unwrap(optimizer);
+            if (!(sgd instanceof SGD))
+                throw new IllegalArgumentException("asynchronous training requires an SGD optimizer");
+            // the workers update the weights directly: only the epoch-level learning rate schedule applies
+            for (Optimizer o = optimizer; o instanceof OptimizerWrapper; o = ((OptimizerWrapper) o).getOptimizer()) {
+                if (o instanceof GradientClipping || (o instanceof LRScheduler && ((LRScheduler) o).getWarmup() > 0))
+                    throw new IllegalArgumentException("asynchronous training does not support gradient clipping or warmup");
+            }
+            hogwild = new Hogwild(net, SoftmaxCrossEntropy::new, (SGD) sgd, numThreads);
+        } else if (numThreads > 1) {
+            parallel = new DataParallel(net, SoftmaxCrossEntropy::new, numThreads);
+        }
 
-                // update the weights using the calculated gradients
-                optimizer.updateWeights();
+        traindata.reset(); // reset index and shuffle the dataset before training
 
-                totalLoss += lossVal;
+        // the mini-batches (split into one shard per thread) are converted ahead on a producer thread
+        int inputDims = traindata.getInputDims();
+        Prefetcher<int[], Integer, List<Pair<Object, DoubleMatrix>>> prefetcher = traindata.prefetch(
+                (items, reuse) -> splitIntoShards(items, inputDims, reuse), hogwild == null ? prefetchDepth : 0);
+
+        // the best weights so far, restored at the end of training if restoreBest
+        Checkpoint.Snapshot bestWeights = null;
+        AsyncCheckpointer checkpointer = null;
+        int startEpoch = 0;
+        int epochsRun = 0;  // the number of epochs trained by this call
+        // the worker threads are stopped and the pending checkpoints written even if training fails
+        try {
+            if (checkpointDir != null) {
+                checkpointer = new AsyncCheckpointer(checkpointDir);
+                if (resume && checkpointer.exists("last", true)) {
+                    TrainingState state = (TrainingState) checkpointer.restore("last", net);
+                    startEpoch = state.nextEpoch;
+                    notAtPeak = state.notAtPeak;
+                    peakAcc = state.peakAcc;
+                    trainingAccuracies = state.trainingAccuracies;
+                    validationAccuracies = state.validationAccuracies;
+                    optimizer.setState(state.optimizerState);
+                    traindata.setState(state.trainState);
+                    if (restoreBest && checkpointer.exists("best", false)) {
+                        bestWeights = Checkpoint.snapshot(Checkpoint.load(checkpointer.modelPath("best")));
+                    }
+                    System.out.printf("resuming from epoch %d\n", startEpoch);
+                }
             }
 
-            // evaluate and print performance
-            double trainAcc = eval(net, traindata);
-            // add trainAcc to the ArrayList storing all accuracies.
-            trainingAccuracies.add(trainAcc);
-
-            // add valAcc to the ArrayList storing all validation accuracies.
-            double valAcc = eval(net, devdata);
-            validationAccuracies.add(valAcc);
+            for (int e = startEpoch; e < nEpochs && notAtPeak < patience; e++) {
+                epochsRun++;
+                totalLoss = 0;
+                int correct = 0;  // the number of correct predictions of the training pass
+
+                if (hogwild != null) {
+                    // every thread takes mini-batches and updates the shared weights without locking
+                    totalLoss = hogwild.trainEpoch(concurrentMiniBatches(traindata));
+                    correct = hogwild.getNumCorrect();
+                } else {
+                    prefetcher.startEpoch();
+                    while (true) {
+                        // get the next mini-batch
+                        List<Pair<Object, DoubleMatrix>> shards = prefetcher.next();
+
+                        if (shards == null)
+                            break;
+
+                        // always reset the gradients before performing backward
+                        optimizer.resetGradients();
+
+                        double lossVal;
+                        if (parallel == null) {
+                            Pair<Object, DoubleMatrix> batch = shards.get(0);
+                            // calculate the loss value
+                            DoubleMatrix Yhat = net.forward(batch.first);
+                            correct += Accuracy.countCorrect(Yhat, batch.second);
+
+                            lossVal = loss.forward(batch.second, Yhat);
+
+                            // calculate gradients of the weights using backprop algorithm
+                            net.backward(loss.backward());
+                        } else {
+                            // calculate the loss value and the gradients on the replicas, summed into the net's gradients
+                            lossVal = parallel.forwardBackward(shards);
+                            correct += parallel.getNumCorrect(shards.size());
+                        }
+
+                        // update the weights using the calculated gradients
+                        optimizer.updateWeights();
+
+                        totalLoss += lossVal;
+                    }
+                }
+                // apply the deferred updates before evaluating, checkpointing or changing the learning rate
+                optimizer.flush();
+
+                // the training accuracy is that of the training pass, each mini-batch predicted before its update
+                double trainAcc = (double) correct / traindata.getSize();
+                // add trainAcc to the ArrayList storing all accuracies.
+                trainingAccuracies.add(trainAcc);
+
+                if ((e + 1) % evalEvery != 0 && e + 1 != nEpochs) {
+                    if (verbose) {
+                        System.out.printf("epoch: %4d\tloss: %5.4f\ttrain-accuracy: %3.4f\n", e, totalLoss, trainAcc);
+                    }
+                    // the learning rate schedule still counts the epoch
+                    optimizer.endEpoch(Double.NaN);
+                } else {
+                    // add valAcc to the ArrayList storing all validation accuracies.
+                    double valAcc = eval(net, devdata);
+                    validationAccuracies.add(valAcc);
+
+                    // e.g. decay the learning rate
+                    optimizer.endEpoch(valAcc);
+
+                    if (verbose) {
+                        System.out.printf("epoch: %4d\tloss: %5.4f\ttrain-accuracy: %3.4f\tdev-accuracy: %3.4f\n", e, totalLoss, trainAcc, valAcc);
+                    }
+
+                    // check termination condition
+                    if (valAcc <= peakAcc) {
+                        notAtPeak += 1;
+                        if (verbose) {
+                            System.out.printf("not at peak %d times consecutively\n", notAtPeak);
+                        }
+                    } else {
+                        notAtPeak = 0;
+                        peakAcc = valAcc;
+                        if (restoreBest || checkpointer != null)
+                            bestWeights = Checkpoint.snapshot(net);
+                        if (checkpointer != null)
+                            checkpointer.save("best", e, bestWeights, null);
+                    }
+                }
 
-            if (verbose) {
-                System.out.printf("epoch: %4d\tloss: %5.4f\ttrain-accuracy: %3.4f\tdev-accuracy: %3.4f\n", e, totalLoss, trainAcc, valAcc);
+                // checkpoint the latest state periodically, and when training stops
+                if (checkpointer != null && ((e + 1) % checkpointEvery == 0 || e + 1 == nEpochs || notAtPeak == patience)) {
+                    TrainingState state = new TrainingState();
+                    state.nextEpoch = e + 1;
+                    state.notAtPeak = notAtPeak;
+                    state.peakAcc = peakAcc;
+                    state.trainingAccuracies = new ArrayList<>(trainingAccuracies);
+                    state.validationAccuracies = new ArrayList<>(validationAccuracies);
+                    state.optimizerState = optimizer.getState();
+                    state.trainState = traindata.getState();
+                    checkpointer.save("last", e, Checkpoint.snapshot(net), state);
+                }
             }
 
-            // check termination condition
-            if (valAcc <= peakAcc) {
-                notAtPeak += 1;
-                if (verbose) {
-                    System.out.printf("not at peak %d times consecutively\n", notAtPeak);
-                }
-            } else {
-                notAtPeak = 0;
-                peakAcc = valAcc;
+            // continue with the weights of the best epoch (e.g. to evaluate them on the test set)
+            if (restoreBest && bestWeights != null) {
+                bestWeights.restoreInto(net);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            prefetcher.shutdown();
+            if (checkpointer != null) {
+                checkpointer.close();
+            }
+            if (parallel != null) {
+                parallel.shutdown();
+            }
+            if (hogwild != null) {
+                hogwild.shutdown();
             }
-            if (notAtPeak == patience)
-                break;
         }
 
         long endTime = System.nanoTime(); // stop timer.
@@ -220,6 +572,6 @@ public class VocabClassifier {
         System.out.println("Total training time: " + trainingDuration + " seconds");
 
         // return best validation accuracy - used for hyperparameter tuning.
-        return Collections.max(validationAccuracies);
+        return new TrainingResult(Collections.max(validationAccuracies), epochsRun, notAtPeak >= patience);
     }
 }
@@ -1,28 +1,35 @@
 package src;
 
+import minet.data.BinaryCache;
 import minet.data.Dataset;
+import minet.data.SparseBatch;
 import minet.util.Pair;
 import org.jblas.DoubleMatrix;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.stream.Collectors;
 
-public class VocabDataset extends Dataset<double[], Integer> {
+public class VocabDataset extends Dataset<int[], Integer> {
 
     // number of input features
     private int inputDims;
     private String pathVocabulary;
     private boolean trainingWeights;
+    private String path;  // the data file
+    private boolean wordCounts;  // if true, samples keep repeated words (@see #setWordCounts)
 
-    private ArrayList<double[]> allWeights = new ArrayList<>();
+    private PretrainedEmbeddings pretrainedEmbeddings;
 
-    private DoubleMatrix pretrainedWeights;
-
-    public DoubleMatrix getPretrainedWeights() {
-        return pretrainedWeights;
+    /**
+     * Get the pre-trained embeddings of the vocabulary (memory-mapped), or null if trainingWeights is false.
+     * @return the pre-trained embeddings.
+     */
+    public PretrainedEmbeddings getPretrainedEmbeddings() {
+        return pretrainedEmbeddings;
     }
 
     /**
@@ -47,34 +54,192 @@ public class VocabDataset extends Dataset<double[], Integer> {
     }
 
     /**
-     * Load data from file and vocabulary.
+     * Create an independent iterator over the samples of another dataset. The samples and pretrained
+     * weights are shared, while the order of the samples, the current index and the random generator are not,
+     * so that several networks can be trained on the same data at the same time.
+     *
+     * @param data the dataset to iterate over
+     * @param rnd  (java.util.Random) random generator for the shuffling
+     */
+    public VocabDataset(VocabDataset data, Random rnd) {
+        super(data.batchsize, data.shuffle, rnd);
+        this.pathVocabulary = data.pathVocabulary;
+        this.trainingWeights = data.trainingWeights;
+        this.inputDims = data.inputDims;
+        this.pretrainedEmbeddings = data.pretrainedEmbeddings;
+        this.shardBytes = data.shardBytes;
+        this.shuffleBuffer = data.shuffleBuffer;
+        this.path = data.path;
+        this.wordCounts = data.wordCounts;
+        if (data.isStreaming()) {
+            // a separate stream over the same file
+            try {
+                openStream(data.path, this::parseLine);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            this.items = new ArrayList<Pair<int[], Integer>>(data.items);
+        }
+    }
+
+    /**
+     * Keep repeated words in the samples instead of a binary bag of words, so that
+     * {@link #toSparseBatch(List, double[])} weights each word by its count. Must be set before loading.
+     * @param wordCounts true to keep the word counts.
+     */
+    public void setWordCounts(boolean wordCounts) {
+        this.wordCounts = wordCounts;
+    }
+
+    /**
+     * Compute the inverse document frequency of each word over the samples of this dataset (usually the
+     * training set), smoothed as log((1 + n) / (1 + df)) + 1, e.g. for TF-IDF weights.
+     * @return the [inputDims] idf of the words.
+     */
+    public double[] computeIdf() {
+        int[] df = new int[inputDims];
+        int n = 0;
+        if (isStreaming()) {
+            reset();
+            List<Pair<int[], Integer>> batch;
+            while ((batch = getNextMiniBatch()) != null) {
+                for (Pair<int[], Integer> item : batch) {
+                    countDocument(item.first, df);
+                }
+                n += batch.size();
+            }
+        } else {
+            for (Pair<int[], Integer> item : items) {
+                countDocument(item.first, df);
+            }
+            n = items.size();
+        }
+        double[] idf = new double[inputDims];
+        for (int w = 0; w < inputDims; w++) {
+            idf[w] = Math.log((1.0 + n) / (1.0 + df[w])) + 1;
+        }
+        return idf;
+    }
+
+    /**
+     * Count the distinct (sorted) words of a sample in the document frequencies.
+     */
+    private static void countDocument(int[] indices, int[] df) {
+        for (int k = 0; k < indices.length; k++) {
+            if (k == 0 || indices[k] != indices[k - 1])
+                df[indices[k]]++;
+        }
+    }
+
+    /**
+     * Load data from file and vocabulary. Each sample is kept as the sorted array of its word indices.
+     * When streaming (@see {@link #setStreaming(long, int)}), the samples are read from the file at each epoch
+     * instead, and path may also be a directory of data files.
      */
     @Override
     public void fromFile(String path) throws IOException {
-        items = new ArrayList<Pair<double[], Integer>>();
+        this.path = path;
+        items = new ArrayList<Pair<int[], Integer>>();
+
+        // map the pre-trained weights of the vocabulary (converted to a binary file on first use).
+        if (trainingWeights) {
+            pretrainedEmbeddings = PretrainedEmbeddings.fromFile(pathVocabulary);
+        }
+
+        if (isStreaming()) {
+            inputDims = trainingWeights ? pretrainedEmbeddings.getRows() : countLinesInFile(pathVocabulary);
+            openStream(path, this::parseLine);
+            return;
+        }
 
-        // get the number of instances (elements) and number of features.
-        int instances = countLinesInFile(path, trainingWeights, false);
-        inputDims = countLinesInFile(pathVocabulary, trainingWeights, true);
+        // samples with word counts are cached separately.
+        File cache = wordCounts ? new File(path + ".counts.bin") : BinaryCache.cacheFileFor(path);
+        if (binaryCache && BinaryCache.isFresh(cache, path, pathVocabulary)) {
+            inputDims = BinaryCache.readSparse(cache, items);
+            return;
+        }
 
+        // get the number of features.
+        inputDims = trainingWeights ? pretrainedEmbeddings.getRows() : countLinesInFile(pathVocabulary);
 
         FileReader fr = new FileReader(path);
         BufferedReader br = new BufferedReader(fr);
 
         // iterate through all the instances
-        for (int i = 0; i < instances; i++) {
-            String[] line = br.readLine().split(" ; ");
-            String locations = line[0]; // get all the locations (indexes) of the words.
-
-            // get the one-hot encoded values and the y value for the current instance.
-            double[] encoded = oneHotEncode(inputDims, locations);
-            int y = Integer.valueOf(line[1]);
-
-            items.add(new Pair<double[], Integer>(encoded, y));
+        String str;
+        while ((str = br.readLine()) != null) {
+            items.add(parseLine(str));
         }
         br.close();
+
+        if (binaryCache) {
+            BinaryCache.writeSparse(cache, inputDims, items);
+        }
     }
 
+    /**
+     * Convert a mini-batch to a sparse (CSR) batch of word indices and a label matrix.
+     *
+     * @param batch a mini-batch returned by {@link #getNextMiniBatch()}
+     * @return the sparse input (first) and a [minibatch_size x 1] label matrix (second), or null if batch is null
+     */
+    public static Pair<SparseBatch, DoubleMatrix> toSparseBatch(List<Pair<int[], Integer>> batch) {
+        return toSparseBatch(batch, null);
+    }
+
+    /**
+     * Convert a mini-batch to a sparse (CSR) batch of word indices with weights and a label matrix.
+     * Repeated words of a sample (@see {@link #setWordCounts(boolean)}) are merged into one index weighted by
+     * their count, times the weight of the word if given (e.g. its idf, @see {@link #computeIdf()}).
+     * Without repeated words and word weights, the batch has no weights (a binary bag of words).
+     *
+     * @param batch a mini-batch returned by {@link #getNextMiniBatch()}
+     * @param wordWeights the [inputDims] weight of each word, or null
+     * @return the sparse input (first) and a [minibatch_size x 1] label matrix (second), or null if batch is null
+     */
+    public static Pair<SparseBatch, DoubleMatrix> toSparseBatch(List<Pair<int[], Integer>> batch, double[] wordWeights) {
+        if (batch == null)
+            return null;
+
+        int[] offsets = new int[batch.size() + 1];
+        double[] ys = new double[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            offsets[i + 1] = offsets[i] + batch.get(i).first.length;
+            ys[i] = batch.get(i).second;
+        }
+
+        int[] indices = new int[offsets[batch.size()]];
+        double[] values = new double[indices.length];
+        boolean binary = wordWeights == null;
+        int n = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            // the words of a sample are sorted, so repeats are adjacent.
+            int[] sample = batch.get(i).first;
+            for (int k = 0; k < sample.length; k++) {
+                if (k > 0 && sample[k] == sample[k - 1]) {
+                    values[n - 1] += 1;
+                    binary = false;
+                } else {
+                    indices[n] = sample[k];
+                    values[n++] = 1;
+                }
+            }
+            offsets[i + 1] = n;
+        }
+        if (n < indices.length) {
+            indices = Arrays.copyOf(indices, n);
+            values = Arrays.copyOf(values, n);
+        }
+        if (wordWeights != null) {
+            for (int k = 0; k < n; k++) {
+                values[k] *= wordWeights[indices[k]];
+            }
+        }
+
+        SparseBatch X = new SparseBatch(offsets, indices, binary ? null : values);
+        return new Pair<SparseBatch, DoubleMatrix>(X, new DoubleMatrix(ys.length, 1, ys));
+    }
 
     /**
      * Count the lines in a given file.
@@ -82,78 +247,66 @@ public class VocabDataset extends Dataset<double[], Integer> {
      * @return the number of lines.
      * @throws IOException
      */
-    public int countLinesInFile(String path, boolean trainingWeights, boolean vocabulary) throws IOException {
+    public int countLinesInFile(String path) throws IOException {
         BufferedReader br = new BufferedReader( new FileReader(path));
         int lines = 0;
-        String line;
-        while ((line = br.readLine()) != null) {
-            // if the trainingWeights flag is true - then read in the weights provided in the file.
-            if (trainingWeights && vocabulary) {
-                String[] splitLine = line.split(" ", 2);
-                placeInWeightslist(splitLine[1]);
-            }
-
+        while (br.readLine() != null) {
             lines++;
         }
-        // create double matrix for the weights passed in.
-        if (trainingWeights && vocabulary) {
-            createDoubleMatrixForWeights();
-        }
 
         br.close();
         return lines;
     }
 
     /**
-     * One hot encode the given instance - Bag-of-Word strategy.
-     * @param noFeatures the number of features in the current dataset.
-     * @param locations the locations of where we will place a one.
-     * @return the one-hot encoded double array.
+     * Parse an instance: its word locations and its label, separated by " ; ".
+     * @param str a line of the data file.
+     * @return the sorted array of distinct word indices and the label.
      */
-    public double[] oneHotEncode(int noFeatures, String locations) {
-        // initialise with noFeatures of zeros.
-        ArrayList<Integer> encoded = new ArrayList<Integer>(Collections.nCopies(noFeatures, 0));
-        // Get all the indexes of the items in a list.
-        List<Integer> indexes = Arrays.stream(locations.split(" "))
-                .map(Integer::parseInt)
-                .collect(Collectors.toList());
-
-        // update zeros with 1 at all the indexes of elements.
-        for (int i=0; i<encoded.size(); i++) {
-            if (indexes.contains(i)) {
-                encoded.set(i, 1);
-            }
-        }
+    public Pair<int[], Integer> parseLine(String str) {
+        String[] line = str.split(" ; ");
+        String locations = line[0]; // get all the locations (indexes) of the words.
 
-        // Convert to double array and return.
-        return encoded.stream().mapToDouble(Integer::doubleValue).toArray();
+        // get the word indices and the y value for the current instance.
+        int[] indices = parseIndices(locations);
+        int y = Integer.parseInt(line[1]);
+
+        return new Pair<int[], Integer>(indices, y);
     }
 
     /**
-     * Convert weight string to a double array containing weight values. This double array is then added
-     * to the allWeights ArrayList.
-     * @param weight the pre-trained weights of a word as a large string.
+     * Parse the word indices of an instance - Bag-of-Word strategy, so repeated words are kept once
+     * (unless word counts are kept, @see {@link #setWordCounts(boolean)}).
+     * @param locations the space-separated locations (indexes) of the words.
+     * @return the sorted array of distinct word indices (with repeats if word counts are kept).
      */
-    private void placeInWeightslist(String weight) {
-        String[] str = weight.split(" ");
-
-        double[] doubleValues = Arrays.stream(str)
-                .mapToDouble(Double::parseDouble)
-                .toArray();
-
-        allWeights.add(doubleValues);
+    public int[] parseIndices(String locations) {
+        String[] str = locations.split(" ");
+        int[] indices = new int[str.length];
+        for (int i = 0; i < str.length; i++) {
+            indices[i] = Integer.parseInt(str[i]);
+        }
+        if (wordCounts) {
+            Arrays.sort(indices);
+            return indices;
+        }
+        return toBagOfWords(indices);
     }
 
     /**
-     * Create a double matrix to store the pretrained weights at.
+     * Turn the word indices of an instance into a bag of words, i.e. sort them and keep repeated words once.
+     * @param indices the word indices (modified).
+     * @return the sorted array of distinct word indices.
      */
-    private void createDoubleMatrixForWeights() {
-        double[][] xs = new double[allWeights.size()][];
-
-        for (int i = 0; i< allWeights.size(); i++) {
-            xs[i] = Arrays.stream(allWeights.get(i)).toArray();
+    public static int[] toBagOfWords(int[] indices) {
+        // sort and drop duplicates in place.
+        Arrays.sort(indices);
+        int n = 0;
+        for (int i = 0; i < indices.length; i++) {
+            if (n == 0 || indices[i] != indices[n - 1]) {
+                indices[n++] = indices[i];
+            }
         }
-
-        pretrainedWeights = new DoubleMatrix(xs);
+        return Arrays.copyOf(indices, n);
     }
 }